@@ -0,0 +1,127 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+
+import com.example.android.pets.data.PetTrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures how fast {@link PetCursorAdapter} binds recycled rows, and checks that a bind in
+ * steady state allocates nothing, counted with {@link Debug#getThreadAllocCount()}. A screenful
+ * of view holders is rebound over and over on the main thread, the way a fling rebinds them,
+ * with tracing off and nothing selected. The pets have no photos, as a photo's thumbnail cache
+ * key is built per bind. The timings are logged under this class's name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetCursorAdapterBindBenchmark {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetCursorAdapterBindBenchmark.class.getSimpleName();
+
+    /** Number of pets in the list */
+    private static final int ROWS = 1000;
+
+    /** Number of view holders, about a screenful */
+    private static final int HOLDERS = 12;
+
+    /** Number of binds timed or counted */
+    private static final int BINDS = 100000;
+
+    private static final String[] BREEDS = { "Tabby", "Terrier", "Siamese", "", null };
+
+    private PetCursorAdapter mAdapter;
+    private List<PetCursorAdapter.PetViewHolder> mHolders;
+    private boolean mTracingEnabled;
+
+    @Before
+    public void setUp() {
+        mTracingEnabled = PetTrace.isEnabled();
+        PetTrace.setEnabled(false);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Context context = new ContextThemeWrapper(
+                        InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+                RecyclerView parent = new RecyclerView(context);
+
+                List<PetRow> rows = new ArrayList<>(ROWS);
+                for (int i = 0; i < ROWS; i++) {
+                    rows.add(new PetRow(i + 1, "Pet " + i, BREEDS[i % BREEDS.length], 0));
+                }
+                mAdapter = new PetCursorAdapter(null);
+                // The first list is taken as is, without diffing
+                mAdapter.submitList(rows);
+
+                mHolders = new ArrayList<>(HOLDERS);
+                for (int i = 0; i < HOLDERS; i++) {
+                    mHolders.add(mAdapter.onCreateViewHolder(parent, 0));
+                }
+                // Every holder has seen every kind of row, so what follows is steady state
+                bind(ROWS);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PetTrace.setEnabled(mTracingEnabled);
+    }
+
+    @Test
+    public void bindThroughput() {
+        final long[] elapsedNanos = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                bind(BINDS);
+                elapsedNanos[0] = System.nanoTime() - startNanos;
+            }
+        });
+        Log.i(LOG_TAG, "Bound " + BINDS + " rows in " + elapsedNanos[0] / 1000000 + " ms, "
+                + elapsedNanos[0] / BINDS + " ns per bind");
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void steadyStateBindDoesNotAllocate() {
+        final int[] allocations = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                bind(BINDS);
+                Debug.stopAllocCounting();
+                allocations[0] = Debug.getThreadAllocCount();
+            }
+        });
+        Log.i(LOG_TAG, allocations[0] + " allocations in " + BINDS + " binds");
+        assertEquals("Allocations in " + BINDS + " binds", 0, allocations[0]);
+    }
+
+    /**
+     * Bind the given number of rows from the top, wrapping around the list, each into the next
+     * view holder in turn.
+     */
+    private void bind(int binds) {
+        for (int i = 0; i < binds; i++) {
+            mAdapter.onBindViewHolder(mHolders.get(i % HOLDERS), i % ROWS);
+        }
+    }
+}
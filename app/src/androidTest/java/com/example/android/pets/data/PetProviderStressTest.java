@@ -0,0 +1,384 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs randomized interleavings of reader and writer threads against a {@link PetProvider} of
+ * its own, on its own database file, calling it directly from every thread the way binder
+ * threads do, at 1 to {@link #MAX_THREADS} threads.
+ *
+ * Each thread only writes pets of its own, so each thread's writes form a sequential model of
+ * those pets: the thread must always read back exactly what the model says, through single-pet
+ * queries as well as scans, and once every thread is done the provider must hold exactly the
+ * union of the models. Threads also read the pets of the others. A pet's weight only ever goes
+ * up and a deleted pet never comes back, so a reader must never see a pet's weight go down, or a
+ * pet reappear, which would mean it saw writes out of their order.
+ *
+ * Runs on a device, against the device's own SQLite and locking. The throughput, the latencies
+ * and how many calls failed with {@link SQLiteDatabaseLockedException} (SQLITE_BUSY) are logged
+ * under this class's name for each thread count. The provider doesn't retry busy calls, so any
+ * busy call is counted as it is. The time calls spend waiting on each other shows as the growth
+ * of the mean latency over the single thread's.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetProviderStressTest {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetProviderStressTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "stress_test.db";
+
+    /** Thread counts run, each on a new database */
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+    private static final int MAX_THREADS = 32;
+
+    /** Calls each thread makes */
+    private static final int OPERATIONS_PER_THREAD = 300;
+
+    private Context mContext;
+    private PetProvider mProvider;
+
+    /** IDs of every pet inserted so far, for the threads to read each other's pets */
+    private AtomicLongArray mPublishedIds;
+    private AtomicInteger mPublishedCount;
+
+    /** What went wrong, from every thread */
+    private Queue<String> mViolations;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+    }
+
+    @After
+    public void tearDown() {
+        stopProvider();
+    }
+
+    @Test
+    public void stressAtRisingThreadCounts() throws InterruptedException {
+        double singleThreadMeanMicros = 0;
+        for (int threads : THREAD_COUNTS) {
+            RoundResult result = runRound(threads, System.nanoTime());
+            if (threads == 1) {
+                singleThreadMeanMicros = result.meanMicros;
+            }
+            Log.i(LOG_TAG, threads + " threads: " + result.operations + " calls in "
+                    + result.elapsedMillis + " ms, "
+                    + (result.operations * 1000L / Math.max(1, result.elapsedMillis))
+                    + " calls/s, latency mean " + (long) result.meanMicros + " us, p99 "
+                    + result.p99Micros + " us, waiting ~"
+                    + (long) Math.max(0, result.meanMicros - singleThreadMeanMicros)
+                    + " us per call, " + result.busy + " busy");
+            assertTrue(mViolations.toString(), mViolations.isEmpty());
+        }
+    }
+
+    private void startProvider() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new PetProvider(DATABASE_NAME);
+        mProvider.attachInfo(mContext, null);
+    }
+
+    private void stopProvider() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+            mProvider = null;
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Run the given number of threads at once on a new database, check the provider against
+     * their models, and return the measurements.
+     */
+    private RoundResult runRound(final int threads, final long seed)
+            throws InterruptedException {
+        startProvider();
+        mPublishedIds = new AtomicLongArray(MAX_THREADS * OPERATIONS_PER_THREAD);
+        mPublishedCount = new AtomicInteger();
+        mViolations = new ConcurrentLinkedQueue<>();
+
+        final Worker[] workers = new Worker[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] running = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, seed + i);
+            final Worker worker = workers[i];
+            running[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        worker.run();
+                    } catch (Throwable e) {
+                        mViolations.add("Thread " + worker.mIndex + " (seed " + worker.mSeed
+                                + ") failed: " + e);
+                    }
+                }
+            });
+            running[i].start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+
+        checkFinalState(workers);
+
+        long[] latencies = new long[threads * OPERATIONS_PER_THREAD];
+        long busy = 0;
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(workers[i].mLatencyMicros, 0, latencies, i * OPERATIONS_PER_THREAD,
+                    OPERATIONS_PER_THREAD);
+            busy += workers[i].mBusy;
+        }
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        stopProvider();
+        return new RoundResult(latencies.length, elapsedMillis,
+                (double) total / latencies.length,
+                latencies[(int) (latencies.length * 0.99)], busy);
+    }
+
+    /**
+     * Check that the provider holds exactly the live pets of every thread's model.
+     */
+    private void checkFinalState(Worker[] workers) {
+        Map<Long, Integer> expected = new HashMap<>();
+        for (Worker worker : workers) {
+            expected.putAll(worker.mLive);
+        }
+        Map<Long, Integer> actual = new HashMap<>();
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI,
+                new String[] { PetEntry._ID, PetEntry.COLUMN_PET_WEIGHT }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                actual.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * One thread of a round, with its model of its own pets and what it saw of the others.
+     */
+    private final class Worker {
+        final int mIndex;
+        final long mSeed;
+        final Random mRandom;
+
+        /** The thread's live pets and their weights */
+        final Map<Long, Integer> mLive = new HashMap<>();
+
+        /** The thread's deleted pets */
+        final Set<Long> mDeleted = new HashSet<>();
+
+        /** The last weight seen of each pet read, or -1 once seen deleted */
+        final Map<Long, Integer> mSeen = new HashMap<>();
+
+        final long[] mLatencyMicros = new long[OPERATIONS_PER_THREAD];
+        long mBusy;
+        int mInserted;
+
+        Worker(int index, long seed) {
+            mIndex = index;
+            mSeed = seed;
+            mRandom = new Random(seed);
+        }
+
+        void run() {
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                long startNanos = System.nanoTime();
+                try {
+                    runOne();
+                } catch (SQLiteDatabaseLockedException e) {
+                    // Nothing was written, so the model stays as it is
+                    mBusy++;
+                }
+                mLatencyMicros[i] = (System.nanoTime() - startNanos) / 1000;
+            }
+        }
+
+        private void runOne() {
+            int choice = mRandom.nextInt(100);
+            if (choice < 25 || mLive.isEmpty()) {
+                insert();
+            } else if (choice < 50) {
+                update(randomLive());
+            } else if (choice < 60) {
+                delete(randomLive());
+            } else if (choice < 75) {
+                readOwn();
+            } else if (choice < 90) {
+                readOther();
+            } else {
+                scanOwn();
+            }
+        }
+
+        private long randomLive() {
+            Long[] ids = mLive.keySet().toArray(new Long[mLive.size()]);
+            return ids[mRandom.nextInt(ids.length)];
+        }
+
+        private void insert() {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "T" + mIndex + "-" + mInserted++);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1);
+            long id = ContentUris.parseId(mProvider.insert(PetEntry.CONTENT_URI, values));
+            mLive.put(id, 1);
+            // Only once committed, so whoever reads it must find it
+            mPublishedIds.set(mPublishedCount.getAndIncrement(), id);
+        }
+
+        private void update(long id) {
+            int weight = mLive.get(id) + 1;
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+            int rows = mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                    values, null, null);
+            expect(rows == 1, "updated " + rows + " rows of live pet " + id);
+            mLive.put(id, weight);
+        }
+
+        private void delete(long id) {
+            int rows = mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                    null, null);
+            expect(rows == 1, "deleted " + rows + " rows of live pet " + id);
+            mLive.remove(id);
+            mDeleted.add(id);
+        }
+
+        private void readOwn() {
+            long id;
+            Integer expected;
+            if (!mDeleted.isEmpty() && mRandom.nextInt(4) == 0) {
+                id = mDeleted.iterator().next();
+                expected = null;
+            } else {
+                id = randomLive();
+                expected = mLive.get(id);
+            }
+            Integer actual = readWeight(id);
+            expect(expected == null ? actual == null : expected.equals(actual),
+                    "read " + actual + " of own pet " + id + ", model says " + expected);
+        }
+
+        private void readOther() {
+            int count = mPublishedCount.get();
+            if (count == 0) {
+                return;
+            }
+            long id = mPublishedIds.get(mRandom.nextInt(count));
+            if (id == 0) {
+                // Claimed but not set yet
+                return;
+            }
+            Integer weight = readWeight(id);
+            Integer seen = mSeen.get(id);
+            if (weight == null) {
+                mSeen.put(id, -1);
+            } else {
+                expect(seen == null || (seen != -1 && weight >= seen), "read weight " + weight
+                        + " of pet " + id + " after " + (seen != null && seen == -1
+                        ? "seeing it deleted" : "weight " + seen));
+                mSeen.put(id, weight);
+            }
+        }
+
+        private void scanOwn() {
+            Map<Long, Integer> actual = new HashMap<>();
+            Cursor cursor = mProvider.query(PetEntry.CONTENT_URI,
+                    new String[] { PetEntry._ID, PetEntry.COLUMN_PET_WEIGHT },
+                    PetEntry.COLUMN_PET_NAME + " LIKE ?", new String[] { "T" + mIndex + "-%" },
+                    null);
+            try {
+                while (cursor.moveToNext()) {
+                    actual.put(cursor.getLong(0), cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            expect(mLive.equals(actual), "scanned " + actual + ", model says " + mLive);
+        }
+
+        /**
+         * Returns the weight of the given pet, or null if it isn't live.
+         */
+        private Integer readWeight(long id) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+            Cursor cursor = mProvider.query(uri, new String[] { PetEntry.COLUMN_PET_WEIGHT },
+                    null, null, null);
+            try {
+                return cursor.moveToFirst() ? cursor.getInt(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private void expect(boolean condition, String violation) {
+            if (!condition) {
+                mViolations.add("Thread " + mIndex + " (seed " + mSeed + ") " + violation);
+            }
+        }
+    }
+
+    /**
+     * The measurements of one round.
+     */
+    private static final class RoundResult {
+        final int operations;
+        final long elapsedMillis;
+        final double meanMicros;
+        final long p99Micros;
+        final long busy;
+
+        RoundResult(int operations, long elapsedMillis, double meanMicros, long p99Micros,
+                    long busy) {
+            this.operations = operations;
+            this.elapsedMillis = elapsedMillis;
+            this.meanMicros = meanMicros;
+            this.p99Micros = p99Micros;
+            this.busy = busy;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the time-range queries of {@link PetProvider}, which
+ * always come with the live pets selection, search the index on the deletion time and the
+ * timestamp instead of scanning the live pets. Runs on a device, against the device's own
+ * SQLite planner and a table of a million pets, both before and after ANALYZE has given it
+ * statistics.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetQueryPlanTest {
+
+    private static final String DATABASE_NAME = "query_plan_test.db";
+
+    /** Number of pets in the table, every tenth of them deleted */
+    private static final int PETS = 1000000;
+
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        // Filling the table takes a recursive CTE, from SQLite 3.8.3 on
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        mDatabase = mDbHelper.getWritableDatabase();
+
+        // Written by one statement, the recursive CTE counting the pets, in one transaction
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                    + PetEntry.COLUMN_PET_CREATED_AT + ", " + PetEntry.COLUMN_PET_UPDATED_AT + ", "
+                    + PetEntry.COLUMN_PET_DELETED_AT + ") WITH RECURSIVE n(i) AS (SELECT 0"
+                    + " UNION ALL SELECT i+1 FROM n WHERE i<" + (PETS - 1) + ") SELECT 'Pet '||i, "
+                    + PetEntry.GENDER_UNKNOWN + ", 1000*i, 1000*i+500,"
+                    + " CASE WHEN i%10=0 THEN 1000*i+700 ELSE 0 END FROM n");
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    @Test
+    public void createdRangeUsesIndex() {
+        assertUsesIndex(PetContract.QUERY_PARAMETER_CREATED_SINCE,
+                PetContract.QUERY_PARAMETER_CREATED_BEFORE, PetDbHelper.LIVE_CREATED_AT_INDEX);
+        mDatabase.execSQL("ANALYZE");
+        assertUsesIndex(PetContract.QUERY_PARAMETER_CREATED_SINCE,
+                PetContract.QUERY_PARAMETER_CREATED_BEFORE, PetDbHelper.LIVE_CREATED_AT_INDEX);
+    }
+
+    @Test
+    public void updatedRangeUsesIndex() {
+        assertUsesIndex(PetContract.QUERY_PARAMETER_UPDATED_SINCE,
+                PetContract.QUERY_PARAMETER_UPDATED_BEFORE, PetDbHelper.LIVE_UPDATED_AT_INDEX);
+        mDatabase.execSQL("ANALYZE");
+        assertUsesIndex(PetContract.QUERY_PARAMETER_UPDATED_SINCE,
+                PetContract.QUERY_PARAMETER_UPDATED_BEFORE, PetDbHelper.LIVE_UPDATED_AT_INDEX);
+    }
+
+    /**
+     * Assert that a query for live pets in a range of the timestamp of the given query
+     * parameters, built like the provider builds it, searches the given index. Checks the
+     * lower bound alone and both bounds.
+     */
+    private void assertUsesIndex(String sinceParameter, String beforeParameter, String index) {
+        assertUsesIndex(PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(sinceParameter, "100000")
+                .build(), index);
+        assertUsesIndex(PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(sinceParameter, "100000")
+                .appendQueryParameter(beforeParameter, "200000")
+                .build(), index);
+    }
+
+    private void assertUsesIndex(Uri uri, String index) {
+        List<String> args = new ArrayList<>();
+        String selection = DatabaseUtils.concatenateWhere(PetProvider.LIVE_SELECTION,
+                PetProvider.buildTimeRange(uri, args));
+        String plan = explain("SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + selection,
+                args.toArray(new String[args.size()]));
+        assertTrue("Plan for " + uri + " doesn't search " + index + ": " + plan,
+                plan.contains("INDEX " + index + " "));
+    }
+
+    /**
+     * Returns the details of the query plan of the given query, one step per line.
+     */
+    private String explain(String sql, String[] args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares loading pets from a {@link PetSnapshot} through
+ * {@link PetContract#METHOD_LOAD_SNAPSHOT} with the two ways pets were added before it: parsing
+ * a CSV export and inserting the pets through the provider, and inserting already-parsed pets
+ * one by one. Runs on a device, as only the device's own SQLite and storage make the timings
+ * mean anything; the results are logged under this class's name.
+ *
+ * Each test runs its own provider on a database file of its own, deleted afterwards, so the
+ * user's pets are never touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetSnapshotLoadBenchmark {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetSnapshotLoadBenchmark.class.getSimpleName();
+
+    /** Number of pets each way loads */
+    private static final int PETS = 10000;
+
+    private static final String[] BREEDS = {
+            "Tabby", "Terrier", "Siamese", "Beagle", "Persian", "Poodle", null };
+
+    private static final String DATABASE_NAME = "snapshot_benchmark.db";
+
+    private Context mContext;
+    private PetProvider mProvider;
+    private File mSnapshotFile;
+    private File mCsvFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new PetProvider(DATABASE_NAME);
+        mProvider.attachInfo(mContext, null);
+
+        mSnapshotFile = new File(mContext.getCacheDir(), "benchmark.pets");
+        OutputStream out = new FileOutputStream(mSnapshotFile);
+        try {
+            PetSnapshot.Writer writer = new PetSnapshot.Writer(out);
+            for (int i = 0; i < PETS; i++) {
+                writer.add(i + 1, nameOf(i), breedOf(i), genderOf(i), weightOf(i));
+            }
+            writer.finish();
+        } finally {
+            out.close();
+        }
+
+        mCsvFile = new File(mContext.getCacheDir(), "benchmark.csv");
+        Writer csv = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mCsvFile),
+                "UTF-8"));
+        try {
+            for (int i = 0; i < PETS; i++) {
+                String breed = breedOf(i);
+                csv.write(nameOf(i) + "," + (breed == null ? "" : breed) + "," + genderOf(i)
+                        + "," + weightOf(i) + "\n");
+            }
+        } finally {
+            csv.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+        if (mSnapshotFile != null) {
+            mSnapshotFile.delete();
+        }
+        if (mCsvFile != null) {
+            mCsvFile.delete();
+        }
+    }
+
+    @Test
+    public void loadSnapshot() {
+        long startNanos = System.nanoTime();
+        Bundle result = mProvider.call(PetContract.METHOD_LOAD_SNAPSHOT,
+                mSnapshotFile.getAbsolutePath(), null);
+        report("snapshot", startNanos);
+        assertEquals(PETS, result.getInt(PetContract.KEY_ROWS_AFFECTED));
+        assertEquals(PETS, countAdded());
+    }
+
+    @Test
+    public void loadCsv() throws IOException {
+        long startNanos = System.nanoTime();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mCsvFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_NAME, fields[0]);
+                values.put(PetEntry.COLUMN_PET_BREED, fields[1].isEmpty() ? null : fields[1]);
+                values.put(PetEntry.COLUMN_PET_GENDER, Integer.parseInt(fields[2]));
+                values.put(PetEntry.COLUMN_PET_WEIGHT, Integer.parseInt(fields[3]));
+                mProvider.insert(PetEntry.CONTENT_URI, values);
+            }
+        } finally {
+            in.close();
+        }
+        report("CSV", startNanos);
+        assertEquals(PETS, countAdded());
+    }
+
+    @Test
+    public void insertPerRow() {
+        ContentValues[] pets = new ContentValues[PETS];
+        for (int i = 0; i < PETS; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, nameOf(i));
+            pets[i].put(PetEntry.COLUMN_PET_BREED, breedOf(i));
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, genderOf(i));
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, weightOf(i));
+        }
+
+        long startNanos = System.nanoTime();
+        for (ContentValues values : pets) {
+            mProvider.insert(PetEntry.CONTENT_URI, values);
+        }
+        report("per-row inserts", startNanos);
+        assertEquals(PETS, countAdded());
+    }
+
+    /**
+     * Loading a snapshot adds its pets next to the existing ones, even where their snapshot
+     * IDs are taken, and leaves the existing pets as they were.
+     */
+    @Test
+    public void loadSnapshotKeepsExistingPets() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Existing");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1);
+        long id = ContentUris.parseId(mProvider.insert(PetEntry.CONTENT_URI, values));
+
+        mProvider.call(PetContract.METHOD_LOAD_SNAPSHOT, mSnapshotFile.getAbsolutePath(), null);
+
+        assertEquals(PETS + 1, countAdded());
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                new String[] { PetEntry.COLUMN_PET_NAME }, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Existing", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String nameOf(int i) {
+        return "Pet " + i;
+    }
+
+    private static String breedOf(int i) {
+        return BREEDS[i % BREEDS.length];
+    }
+
+    private static int genderOf(int i) {
+        return i % 3;
+    }
+
+    private static int weightOf(int i) {
+        return i % 40;
+    }
+
+    private static void report(String method, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        Log.i(LOG_TAG, "Loaded " + PETS + " pets from " + method + " in " + micros / 1000
+                + " ms, " + micros / PETS + " us per pet");
+    }
+
+    /**
+     * Returns the number of pets added since the test started, i.e. in the database.
+     */
+    private int countAdded() {
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] { "COUNT(*)" },
+                null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
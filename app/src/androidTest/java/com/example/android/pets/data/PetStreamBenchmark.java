@@ -0,0 +1,197 @@
+package com.example.android.pets.data;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares reading every pet of a shelter from another process with a plain cursor scan and
+ * with the pet stream of {@link PetEntry#STREAM_URI}, at 100k and 1M pets. The reads run in
+ * {@link PetStreamReaderService}, which the debug build runs in a ":reader" process of its own,
+ * so they cross a real Binder and CursorWindow boundary without the provider being exported.
+ * The results are logged under this class's name.
+ *
+ * The pets go into a shelter of their own, deleted with its database file afterwards, so the
+ * user's pets are never touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetStreamBenchmark {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetStreamBenchmark.class.getSimpleName();
+
+    /** The benchmark's own shelter */
+    private static final long SHELTER_ID = 999999;
+
+    /** Database file of the shelter, named the way PetShardManager names them */
+    private static final String SHELTER_DATABASE_NAME = "shelter_" + SHELTER_ID + ".db";
+
+    /** Longest one read may take */
+    private static final long READ_TIMEOUT_MINUTES = 10;
+
+    /** Times each way reads, keeping the fastest, so neither pays alone for a cold cache */
+    private static final int RUNS = 2;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private Messenger mReader;
+    private ServiceConnection mConnection;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        // Filling the shelter takes a recursive CTE, from SQLite 3.8.3 on
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+        mContext = InstrumentationRegistry.getTargetContext();
+        mResolver = mContext.getContentResolver();
+        deleteShelter();
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        mConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                mReader = new Messenger(service);
+                connected.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                mReader = null;
+            }
+        };
+        assertTrue(mContext.bindService(new Intent(mContext, PetStreamReaderService.class),
+                mConnection, Context.BIND_AUTO_CREATE));
+        assertTrue(connected.await(1, TimeUnit.MINUTES));
+    }
+
+    @After
+    public void tearDown() {
+        if (mConnection != null) {
+            mContext.unbindService(mConnection);
+        }
+        if (mResolver != null) {
+            deleteShelter();
+        }
+    }
+
+    @Test
+    public void read100k() throws Exception {
+        compare(100000);
+    }
+
+    @Test
+    public void read1M() throws Exception {
+        compare(1000000);
+    }
+
+    /**
+     * Fill the shelter with the given number of pets, then read them all both ways.
+     */
+    private void compare(int pets) throws Exception {
+        fillShelter(pets);
+        long cursorMillis = Long.MAX_VALUE;
+        long streamMillis = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            cursorMillis = Math.min(cursorMillis, read(false, pets));
+            streamMillis = Math.min(streamMillis, read(true, pets));
+        }
+        Log.i(LOG_TAG, pets + " pets across processes: cursor scan " + cursorMillis
+                + " ms, stream " + streamMillis + " ms ("
+                + String.format("%.2f", (double) cursorMillis / Math.max(1, streamMillis))
+                + "x)");
+    }
+
+    /**
+     * Create the shelter with the given number of pets. The pets are written straight into its
+     * database file, in one transaction, before the provider opens it.
+     */
+    private void fillShelter(int pets) {
+        PetDbHelper dbHelper = new PetDbHelper(mContext, SHELTER_DATABASE_NAME);
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                database.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                        + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                        + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+                        + PetEntry.COLUMN_PET_CREATED_AT + ", " + PetEntry.COLUMN_PET_UPDATED_AT
+                        + ") WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i+1 FROM n"
+                        + " WHERE i<" + pets + ") SELECT 'Pet '||i,"
+                        + " CASE WHEN i%7=0 THEN NULL ELSE 'Breed '||(i%50) END, i%3, i%40, i, i"
+                        + " FROM n");
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            dbHelper.close();
+        }
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_CREATE_SHELTER,
+                String.valueOf(SHELTER_ID), null);
+    }
+
+    private void deleteShelter() {
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_DELETE_SHELTER,
+                String.valueOf(SHELTER_ID), null);
+        // In case a failed run left the file without creating the shelter
+        mContext.deleteDatabase(SHELTER_DATABASE_NAME);
+    }
+
+    /**
+     * Have the reader process read every pet of the shelter, streaming or scanning.
+     *
+     * @return how long the read took, in milliseconds.
+     */
+    private long read(boolean stream, int pets) throws InterruptedException, RemoteException {
+        final Bundle[] result = new Bundle[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        Bundle request = new Bundle();
+        request.putLong(PetStreamReaderService.KEY_SHELTER_ID, SHELTER_ID);
+        request.putBoolean(PetStreamReaderService.KEY_STREAM, stream);
+        // No handler, so the result arrives on a binder thread while this one waits
+        request.putParcelable(PetStreamReaderService.KEY_RECEIVER, new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                result[0] = resultData;
+                done.countDown();
+            }
+        });
+        Message message = Message.obtain();
+        message.setData(request);
+        assertNotNull("Reader not connected", mReader);
+        mReader.send(message);
+        assertTrue("Read timed out", done.await(READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+
+        assertNull(result[0].getString(PetStreamReaderService.KEY_ERROR));
+        assertEquals(pets, result[0].getInt(PetStreamReaderService.KEY_ROWS));
+        return result[0].getLong(PetStreamReaderService.KEY_MILLIS);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.pets.data;
+
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+
+/**
+ * Reads every pet of a shelter from the provider, from a process of its own, so the reads cross
+ * a real Binder boundary the way another app's do: either with a cursor scan, a page of
+ * {@link #PAGE_ROWS} pets per query, or with {@link PetSnapshot#stream}. Debug builds only; it
+ * is what PetStreamBenchmark measures.
+ *
+ * Bound through a {@link Messenger}. Each message's data holds the shelter in
+ * {@link #KEY_SHELTER_ID}, whether to stream in {@link #KEY_STREAM} and a
+ * {@link ResultReceiver} in {@link #KEY_RECEIVER}, which gets the number of pets read in
+ * {@link #KEY_ROWS} and how long it took in {@link #KEY_MILLIS}, or the failure in
+ * {@link #KEY_ERROR}.
+ */
+public class PetStreamReaderService extends Service {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetStreamReaderService.class.getSimpleName();
+
+    static final String KEY_SHELTER_ID = "shelter_id";
+    static final String KEY_STREAM = "stream";
+    static final String KEY_RECEIVER = "receiver";
+    static final String KEY_ROWS = "rows";
+    static final String KEY_MILLIS = "millis";
+    static final String KEY_ERROR = "error";
+
+    /** Pets per query of a cursor scan, within the provider's default row budget */
+    private static final int PAGE_ROWS = 5000;
+
+    /** Columns read, the same a snapshot holds */
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private HandlerThread mThread;
+    private Messenger mMessenger;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+        mMessenger = new Messenger(new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                read(message.getData());
+                return true;
+            }
+        }));
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        mThread.quit();
+        super.onDestroy();
+    }
+
+    private void read(Bundle request) {
+        ResultReceiver receiver = request.getParcelable(KEY_RECEIVER);
+        long shelterId = request.getLong(KEY_SHELTER_ID);
+        boolean stream = request.getBoolean(KEY_STREAM);
+        Bundle result = new Bundle();
+        try {
+            long startMillis = SystemClock.elapsedRealtime();
+            int rows = stream ? readStream(shelterId) : readCursor(shelterId);
+            result.putInt(KEY_ROWS, rows);
+            result.putLong(KEY_MILLIS, SystemClock.elapsedRealtime() - startMillis);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Reading shelter " + shelterId + " failed", e);
+            result.putString(KEY_ERROR, e.toString());
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Reading shelter " + shelterId + " failed", e);
+            result.putString(KEY_ERROR, e.toString());
+        }
+        if (receiver != null) {
+            receiver.send(0, result);
+        }
+    }
+
+    /**
+     * Read every pet of the shelter with cursors, a page at a time by key, the way a client has
+     * to within the provider's row budget. Touches every value, like the stream's handler.
+     */
+    private int readCursor(long shelterId) {
+        ContentResolver resolver = getContentResolver();
+        Uri uri = PetEntry.buildShelterUri(shelterId).buildUpon()
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(PAGE_ROWS))
+                .build();
+        long lastId = -1;
+        int rows = 0;
+        long checksum = 0;
+        int pageRows;
+        do {
+            Cursor cursor = resolver.query(uri, PROJECTION, PetEntry._ID + ">?",
+                    new String[] { String.valueOf(lastId) }, PetEntry._ID + " ASC");
+            if (cursor == null) {
+                throw new IllegalStateException("No cursor for " + uri);
+            }
+            try {
+                pageRows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    String breed = cursor.getString(2);
+                    checksum += cursor.getString(1).length() + (breed == null ? 0 : breed.length())
+                            + cursor.getInt(3) + cursor.getInt(4);
+                }
+            } finally {
+                cursor.close();
+            }
+            rows += pageRows;
+        } while (pageRows == PAGE_ROWS);
+        Log.v(LOG_TAG, "Scanned " + rows + " pets, checksum " + checksum);
+        return rows;
+    }
+
+    /**
+     * Read every pet of the shelter through the provider's pet stream.
+     */
+    private int readStream(long shelterId) throws IOException {
+        final long[] checksum = new long[1];
+        int rows = PetSnapshot.stream(getContentResolver(), shelterId, null, null,
+                new PetSnapshot.RowHandler() {
+                    @Override
+                    public void onRow(long id, String name, String breed, int gender,
+                                      int weight) {
+                        checksum[0] += name.length() + (breed == null ? 0 : breed.length())
+                                + gender + weight;
+                    }
+                });
+        Log.v(LOG_TAG, "Streamed " + rows + " pets, checksum " + checksum[0]);
+        return rows;
+    }
+}
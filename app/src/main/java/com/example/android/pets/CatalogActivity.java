@@ -15,38 +15,179 @@
  */
 package com.example.android.pets;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTrace;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements
+        LoaderManager.LoaderCallbacks<List<PetRow>>, PetSaveQueue.Listener {
 
     private static final int PET_LOADER = 0;
 
-    // Adapter for our ListView
+    /** Extra with the ID of a pet the editor just deleted, so the deletion can be undone here */
+    static final String EXTRA_DELETED_PET_ID = "deleted_pet_id";
+
+    /** Loader argument holding the text the catalog is filtered by */
+    private static final String ARG_FILTER = "filter";
+
+    /** Key for the filter text in the saved instance state */
+    private static final String STATE_FILTER = "filter";
+
+    /** How long typing has to pause before the filter is applied */
+    private static final long FILTER_DEBOUNCE_MS = 300;
+
+    /** Number of rows above and below the screen whose full records are prefetched */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    // Adapter for our RecyclerView
     PetCursorAdapter mCursorAdapter;
 
+    // View shown in place of the list when there are no pets
+    private View mEmptyView;
+
+    // List of pets and its layout manager, used to find the rows on screen
+    private RecyclerView mPetListView;
+    private LinearLayoutManager mLayoutManager;
+
+    // Full pet records prefetched for the editor
+    private PetRecordCache mRecordCache;
+
+    // Text the catalog is filtered by, or null to show every pet
+    private String mFilter;
+
+    // Restarts the loader with the current filter once typing pauses
+    private final Handler mFilterHandler = new Handler();
+    private final Runnable mApplyFilter = new Runnable() {
+        @Override
+        public void run() {
+            Bundle args = new Bundle();
+            args.putString(ARG_FILTER, mFilter);
+            // Restarting cancels the query for the previous filter, even mid-scan
+            getLoaderManager().restartLoader(PET_LOADER, args, CatalogActivity.this);
+        }
+    };
+
+    // Saves from the editor that may not be in the database yet
+    private PetSaveQueue mSaveQueue;
+
+    // Rows from the last load, before pending saves are laid over them, and the
+    // {@link PetSaveQueue} commit sequence they are known to include
+    private List<PetRow> mLoadedRows;
+    private long mLoadedSaveSequence;
+
+    // Rows last handed to the adapter, with the pending saves laid over them
+    private List<PetRow> mShownRows;
+
+    // Contextual action bar shown while pets are selected, or null
+    private ActionMode mActionMode;
+
+    // When the activity was created, and whether the first frame showing pets was timed yet
+    private long mCreateUptimeMillis;
+    private boolean mFirstFrameTimed;
+
+    // Actions on the selected pets
+    private final ActionMode.Callback mSelectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            // Windowed catalogs are too large to select pet by pet
+            MenuItem selectAll = menu.findItem(R.id.action_select_all);
+            boolean canSelectAll = mCursorAdapter.canSelectAll();
+            if (selectAll.isEnabled() == canSelectAll) {
+                return false;
+            }
+            selectAll.setEnabled(canSelectAll);
+            return true;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            Bundle extras;
+            switch (item.getItemId()) {
+                case R.id.action_select_all:
+                    mCursorAdapter.selectAll();
+                    return true;
+                case R.id.action_delete_selected:
+                    showDeleteSelectedDialog();
+                    return true;
+                case R.id.action_set_gender_male:
+                    extras = new Bundle();
+                    extras.putInt(PetContract.KEY_GENDER, PetEntry.GENDER_MALE);
+                    runBatch(PetContract.METHOD_BATCH_SET_GENDER, extras);
+                    return true;
+                case R.id.action_set_gender_female:
+                    extras = new Bundle();
+                    extras.putInt(PetContract.KEY_GENDER, PetEntry.GENDER_FEMALE);
+                    runBatch(PetContract.METHOD_BATCH_SET_GENDER, extras);
+                    return true;
+                case R.id.action_set_gender_unknown:
+                    extras = new Bundle();
+                    extras.putInt(PetContract.KEY_GENDER, PetEntry.GENDER_UNKNOWN);
+                    runBatch(PetContract.METHOD_BATCH_SET_GENDER, extras);
+                    return true;
+                case R.id.action_increase_weight:
+                    extras = new Bundle();
+                    extras.putInt(PetContract.KEY_WEIGHT_DELTA, 1);
+                    runBatch(PetContract.METHOD_BATCH_ADJUST_WEIGHT, extras);
+                    return true;
+                case R.id.action_decrease_weight:
+                    extras = new Bundle();
+                    extras.putInt(PetContract.KEY_WEIGHT_DELTA, -1);
+                    runBatch(PetContract.METHOD_BATCH_ADJUST_WEIGHT, extras);
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mActionMode = null;
+            mCursorAdapter.clearSelection();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreateUptimeMillis = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
@@ -60,21 +201,46 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Find the ListView which will be populated with the pet data
-        ListView petListView = findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the pet data
+        mPetListView = findViewById(R.id.list);
+        mLayoutManager = new LinearLayoutManager(this);
+        mPetListView.setLayoutManager(mLayoutManager);
+        mPetListView.setHasFixedSize(true);
+        mRecordCache = PetRecordCache.getInstance(this);
+        mSaveQueue = PetSaveQueue.getInstance(this);
+
+        // Let the adapter know what's on screen, so very large catalogs can page in the rows
+        // around it and prefetch ahead of the scroll direction. Once the list comes to rest,
+        // prefetch the full records of the pets around the screen for the editor.
+        mPetListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                mCursorAdapter.onVisibleRangeChanged(
+                        mLayoutManager.findFirstVisibleItemPosition(),
+                        mLayoutManager.findLastVisibleItemPosition(),
+                        dy >= 0);
+            }
 
-        // Find the set empty view on the ListView, so that it only shows when the list has 0 pets.
-        View emptyView = findViewById(R.id.empty_view);
-        petListView.setEmptyView(emptyView);
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prefetchVisiblePets();
+                }
+            }
+        });
 
-        // Setup an Adapter to create a list item for each row of pet data in the Cursor
-        mCursorAdapter = new PetCursorAdapter(this, null);
-        petListView.setAdapter(mCursorAdapter);
+        // Find the empty view, so that it only shows when the list has 0 pets.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Setup item click listener
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an Adapter to create a list item for each row of pet data. Clicking on a pet
+        // opens it in the {@link EditorActivity}.
+        mCursorAdapter = new PetCursorAdapter(new PetCursorAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(long id) {
+                // Pets still being inserted don't have a real ID yet
+                if (id < 0) {
+                    return;
+                }
 
                 // Create new intent to go to {@link EditorActivity}
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
@@ -91,12 +257,307 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 // Launch the {@link EditorActivity} to display the data for the current pet.
                 startActivity(intent);
             }
+
+            @Override
+            public void onSelectionChanged(int selectedCount) {
+                if (selectedCount == 0) {
+                    if (mActionMode != null) {
+                        mActionMode.finish();
+                    }
+                    return;
+                }
+                if (mActionMode == null) {
+                    mActionMode = startSupportActionMode(mSelectionCallback);
+                }
+                mActionMode.setTitle(getResources().getQuantityString(
+                        R.plurals.selected_pets_title, selectedCount, selectedCount));
+            }
+        });
+        mPetListView.setAdapter(mCursorAdapter);
+
+        // Kick off the loader. After a configuration change the existing loader, and the
+        // filter it was started with, is reused.
+        if (savedInstanceState != null) {
+            mFilter = savedInstanceState.getString(STATE_FILTER);
+        } else {
+            // On a fresh launch show the first page saved last time, until the live rows arrive
+            List<PetRow> firstPage = PetFirstPageSnapshot.read(this);
+            if (!firstPage.isEmpty()) {
+                mCursorAdapter.submitList(firstPage);
+                timeFirstFrame("first-page snapshot");
+            }
+        }
+        Bundle args = new Bundle();
+        args.putString(ARG_FILTER, mFilter);
+        getLoaderManager().initLoader(PET_LOADER, args, this);
+
+        if (savedInstanceState == null) {
+            showUndoForEditorDelete(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        showUndoForEditorDelete(intent);
+    }
+
+    /**
+     * Offer to undo the deletion of the pet in the intent, if the editor just deleted one.
+     */
+    private void showUndoForEditorDelete(Intent intent) {
+        long id = intent.getLongExtra(EXTRA_DELETED_PET_ID, -1);
+        if (id != -1) {
+            showUndoDelete(getString(R.string.editor_delete_pet_successful), new long[] { id });
+        }
+    }
+
+    /**
+     * Show the given message with an action that brings the deleted pets back, for as long as
+     * the provider still can.
+     */
+    private void showUndoDelete(String message, final long[] ids) {
+        Snackbar.make(mPetListView, message, Snackbar.LENGTH_LONG)
+                .setAction(R.string.undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        Bundle extras = new Bundle();
+                        extras.putLongArray(PetContract.KEY_IDS, ids);
+                        new BatchTask(getApplicationContext(), PetContract.METHOD_UNDO_DELETE)
+                                .execute(extras);
+                    }
+                })
+                .show();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_FILTER, mFilter);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mFilterHandler.removeCallbacks(mApplyFilter);
+    }
+
+    /**
+     * Filter the catalog by the given text once typing pauses for {@link #FILTER_DEBOUNCE_MS}.
+     *
+     * @param filter is the text to filter by; empty shows every pet.
+     * @param immediately applies the filter without waiting.
+     */
+    private void setFilter(String filter, boolean immediately) {
+        String newFilter = filter == null ? null : filter.trim();
+        if (TextUtils.isEmpty(newFilter)) {
+            newFilter = null;
+        }
+        if (TextUtils.equals(newFilter, mFilter) && !immediately) {
+            return;
+        }
+        mFilter = newFilter;
+        mFilterHandler.removeCallbacks(mApplyFilter);
+        if (immediately) {
+            mApplyFilter.run();
+        } else {
+            mFilterHandler.postDelayed(mApplyFilter, FILTER_DEBOUNCE_MS);
+        }
+    }
+
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mSaveQueue.addListener(this);
+        // Pick up saves queued by the editor while we were in the background
+        onPendingSavesChanged();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mSaveQueue.removeListener(this);
+    }
+
+    @Override
+    public void onPendingSavesChanged() {
+        if (mLoadedRows != null) {
+            showRows(mLoadedRows);
+        }
+    }
+
+    /**
+     * Show the given rows with any pending saves laid over them.
+     */
+    private void showRows(List<PetRow> rows) {
+        List<PetRow> shownRows = mSaveQueue.applyTo(rows, mLoadedSaveSequence);
+        mShownRows = shownRows;
+
+        // Hand the rows to {@link PetCursorAdapter}; they are diffed against the current list
+        // in the background and only the changed rows are rebound.
+        mCursorAdapter.submitList(shownRows);
+        mEmptyView.setVisibility(shownRows.isEmpty() ? View.VISIBLE : View.GONE);
+        if (mActionMode != null) {
+            // The catalog may have switched between a snapshot and a window
+            mActionMode.invalidate();
+        }
+    }
+
+    /**
+     * Log how long after the activity was created the list first draws with pets in it, and
+     * where they came from. Only the first call counts.
+     */
+    private void timeFirstFrame(final String source) {
+        if (mFirstFrameTimed) {
+            return;
+        }
+        mFirstFrameTimed = true;
+        mPetListView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (mPetListView.getChildCount() == 0) {
+                    return true;
+                }
+                mPetListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i("CatalogActivity", "First frame with pets "
+                        + (SystemClock.uptimeMillis() - mCreateUptimeMillis)
+                        + " ms after create, from the " + source);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Log how long after the activity was created the list first draws live rows, which is when
+     * pets would first show without the first-page snapshot. Uses the same pre-draw hook as
+     * {@link #timeFirstFrame(String)}, waiting until the adapter has taken the rows shown last,
+     * as a list is diffed in the background before it is applied.
+     */
+    private void timeLiveRowsDrawn() {
+        mPetListView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (!mCursorAdapter.isShowing(mShownRows)) {
+                    return true;
+                }
+                mPetListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i("CatalogActivity", "First frame with live rows "
+                        + (SystemClock.uptimeMillis() - mCreateUptimeMillis) + " ms after create");
+                return true;
+            }
+        });
+        // Live rows the same as the snapshot change nothing on screen, so make sure a frame
+        // still follows
+        mPetListView.invalidate();
+    }
+
+    /**
+     * Prefetch the full records of the pets on screen and {@link #PREFETCH_DISTANCE} rows either
+     * side, so opening one of them in the {@link EditorActivity} doesn't wait on a query.
+     */
+    private void prefetchVisiblePets() {
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        int last = mLayoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int from = Math.max(0, first - PREFETCH_DISTANCE);
+        int to = Math.min(mCursorAdapter.getItemCount() - 1, last + PREFETCH_DISTANCE);
+
+        List<Long> ids = new ArrayList<>(to - from + 1);
+        for (int position = from; position <= to; position++) {
+            PetRow row = mCursorAdapter.getItem(position);
+            if (row != null) {
+                ids.add(row.id);
+            }
+        }
+        mRecordCache.prefetch(ids);
+    }
+
+    /**
+     * Ask the user to confirm deleting the selected pets, then delete them.
+     */
+    private void showDeleteSelectedDialog() {
+        int count = mCursorAdapter.getSelectedIds().length;
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getResources().getQuantityString(
+                R.plurals.delete_selected_dialog_msg, count, count));
+        builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                long[] ids = mCursorAdapter.getSelectedIds();
+                runBatch(PetContract.METHOD_BATCH_DELETE, new Bundle());
+                // Batches run in order, so an undo always comes after the delete
+                showUndoDelete(getResources().getQuantityString(R.plurals.batch_pets_deleted,
+                        ids.length, ids.length), ids);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
         });
+        builder.create().show();
+    }
 
-        // Kick off the loader
-        getLoaderManager().initLoader(PET_LOADER, null, this);
+    /**
+     * Apply one of the provider's batch methods to the selected pets in the background and
+     * leave selection mode. The whole batch is one transaction and one change notification, so
+     * the catalog reloads once however many pets were selected.
+     */
+    private void runBatch(String method, Bundle extras) {
+        extras.putLongArray(PetContract.KEY_IDS, mCursorAdapter.getSelectedIds());
+        new BatchTask(getApplicationContext(), method).execute(extras);
+        if (mActionMode != null) {
+            mActionMode.finish();
+        }
     }
 
+    /**
+     * Runs a batch method of the provider and toasts how many pets it changed. Only holds the
+     * application context, so it doesn't leak the activity if it outlives it.
+     */
+    private static class BatchTask extends AsyncTask<Bundle, Void, Integer> {
+        private final Context mContext;
+        private final String mMethod;
+
+        BatchTask(Context context, String method) {
+            mContext = context;
+            mMethod = method;
+        }
+
+        @Override
+        protected Integer doInBackground(Bundle... extras) {
+            try {
+                Bundle result = mContext.getContentResolver().call(PetEntry.CONTENT_URI,
+                        mMethod, null, extras[0]);
+                return result == null ? null : result.getInt(PetContract.KEY_ROWS_AFFECTED);
+            } catch (IllegalArgumentException e) {
+                Log.e("CatalogActivity", "Batch " + mMethod + " failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer rowsAffected) {
+            String message;
+            if (rowsAffected == null) {
+                message = mContext.getString(R.string.batch_action_failed);
+            } else if (PetContract.METHOD_BATCH_DELETE.equals(mMethod)) {
+                // The catalog already shows the deletion, with its undo
+                return;
+            } else {
+                int plural = PetContract.METHOD_UNDO_DELETE.equals(mMethod)
+                        ? R.plurals.batch_pets_restored : R.plurals.batch_pets_updated;
+                message = mContext.getResources().getQuantityString(plural, rowsAffected,
+                        rowsAffected);
+            }
+            Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+        }
+    }
 
     /**
      * Helper method to insert hardcoded pet data into the database. For debugging only.
@@ -138,6 +599,27 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Setup the search box to filter the catalog as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        if (mFilter != null) {
+            searchItem.expandActionView();
+            searchView.setQuery(mFilter, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setFilter(query, true);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setFilter(newText, false);
+                return true;
+            }
+        });
         return true;
     }
 
@@ -157,31 +639,54 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED };
-
-        // This loader will execute teh ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                PetEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+    public Loader<List<PetRow>> onCreateLoader(int id, Bundle args) {
+        // This loader will execute the ContentProvider's query method on a background thread
+        // and snapshot the _id, name and breed of every pet matching the filter
+        return new PetListLoader(this, args == null ? null : args.getString(ARG_FILTER));
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-       // Update {@link PetCursorAdapter} with this new cursor containing updated pet data
-       mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<List<PetRow>> loader, List<PetRow> data) {
+        // Never show results for a filter the user has already typed past
+        if (!TextUtils.equals(((PetListLoader) loader).getFilter(), mFilter)) {
+            return;
+        }
+
+        long traceStart = PetTrace.begin("CatalogActivity.submitList");
+        try {
+            boolean firstLoad = mLoadedRows == null;
+            mLoadedRows = data;
+            mLoadedSaveSequence = ((PetListLoader) loader).getDeliveredSaveSequence();
+            showRows(data);
+            if (firstLoad) {
+                timeLiveRowsDrawn();
+            }
+            if (!data.isEmpty()) {
+                timeFirstFrame("live query");
+            }
+            if (mFilter == null) {
+                // Keep the snapshot for the next cold start up to date
+                PetFirstPageSnapshot.save(this, data);
+            }
+
+            // Prefetch for the editor once the new rows have been laid out
+            mPetListView.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPetListView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
+                        prefetchVisiblePets();
+                    }
+                }
+            });
+        } finally {
+            PetTrace.end("CatalogActivity.submitList", traceStart, data.size());
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<List<PetRow>> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mLoadedRows = null;
+        mCursorAdapter.submitList(null);
     }
 }
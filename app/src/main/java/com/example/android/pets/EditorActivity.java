@@ -17,17 +17,24 @@ package com.example.android.pets;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentUris;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -39,6 +46,13 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -46,9 +60,15 @@ import com.example.android.pets.data.PetContract.PetEntry;
 public class EditorActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
+    // Tag for the log messages
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
     /** Identifier for the pet data loader */
     private static final int EXISTING_PET_LOADER = 0;
 
+    /** Request code for picking a photo of the pet */
+    private static final int REQUEST_PICK_PHOTO = 1;
+
     /** Content URI for the existing pet (null if it's a new pet) */
     private Uri mCurrentPetUri;
 
@@ -71,6 +91,21 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private int mGender = PetEntry.GENDER_UNKNOWN;
 
+    /** Time the pet loader was created, used to trace how long the editor took to fill in */
+    private long mLoadStartNanos;
+
+    /** Time the editor was created, used to measure how long it took to show the pet */
+    private long mOpenStartNanos;
+
+    /** Whether the time to show the pet has been recorded, from the cache or the loader */
+    private boolean mOpenRecorded;
+
+    /**
+     * Values of the existing pet as last shown in the editor, used to work out which fields
+     * actually changed when saving. Null for a new pet or until the values have been shown.
+     */
+    private PetRecord mShownRecord;
+
     /** Boolean flag that keeps track of whether the pet has been edited (true) or not (false) */
     private boolean mPetHasChanged = false;
 
@@ -88,6 +123,7 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mOpenStartNanos = System.nanoTime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_editor);
 
@@ -129,6 +165,18 @@ public class EditorActivity extends AppCompatActivity implements
         mGenderSpinner.setOnTouchListener(mTouchListener);
 
         setupSpinner();
+
+        // If the catalog already prefetched this pet, show it right away. The loader still
+        // runs, but its result only has to confirm what's on screen.
+        if (mCurrentPetUri != null && savedInstanceState == null) {
+            PetRecordCache cache = PetRecordCache.getInstance(this);
+            PetRecord record = cache.getFresh(ContentUris.parseId(mCurrentPetUri));
+            if (record != null) {
+                showPet(record);
+                mOpenRecorded = true;
+                cache.recordOpen(true, (System.nanoTime() - mOpenStartNanos) / 1000);
+            }
+        }
     }
 
     /**
@@ -174,6 +222,18 @@ public class EditorActivity extends AppCompatActivity implements
      * Get user input from editor and save pet into database.
      */
     private void savePet() {
+        long traceStart = PetTrace.begin("EditorActivity.savePet");
+        try {
+            writePet();
+        } finally {
+            PetTrace.end("EditorActivity.savePet", traceStart, 1);
+        }
+    }
+
+    /**
+     * Does the actual work of {@link #savePet()}.
+     */
+    private void writePet() {
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
@@ -190,53 +250,55 @@ public class EditorActivity extends AppCompatActivity implements
             return;
         }
 
-        // Create a ContentValues object where column names are the keys,
-        // and pet attributes from the editor are the values.
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, nameString);
-        values.put(PetEntry.COLUMN_PET_BREED, breedString);
-        values.put(PetEntry.COLUMN_PET_GENDER, mGender);
         // If the weight is not provided by the user, don't try to parse the string into an
         // integer value. Use 0 by default.
         int weight = 0;
         if (!TextUtils.isEmpty(weightString)) {
             weight = Integer.parseInt(weightString);
         }
-        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
 
-        // Determine if this is a new or existing pet by checking if mCurrentPetUri is null or not
+        // Create a ContentValues object where column names are the keys,
+        // and pet attributes from the editor are the values. For an existing pet, only the
+        // fields that differ from what was loaded are included.
+        PetRecord shown = mShownRecord;
+        ContentValues values = new ContentValues();
+        if (shown == null || !TextUtils.equals(nameString, shown.name)) {
+            values.put(PetEntry.COLUMN_PET_NAME, nameString);
+        }
+        // A missing breed is shown as an empty field, so treat null and "" as the same
+        if (shown == null || !TextUtils.equals(breedString,
+                shown.breed == null ? "" : shown.breed)) {
+            values.put(PetEntry.COLUMN_PET_BREED, breedString);
+        }
+        if (shown == null || mGender != shown.gender) {
+            values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+        }
+        if (shown == null || weight != shown.weight) {
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        }
+
+        PetSaveQueue saveQueue = PetSaveQueue.getInstance(this);
+        if (mCurrentPetUri != null && values.size() == 0) {
+            // Nothing actually changed, so don't bother the provider (and every loader
+            // watching it) with a write
+            saveQueue.recordSkippedSave(PetSaveQueue.ALL_COLUMNS);
+            return;
+        }
+        if (shown != null) {
+            saveQueue.recordSkippedSave(PetSaveQueue.ALL_COLUMNS - values.size());
+        }
+
+        // Determine if this is a new or existing pet by checking if mCurrentPetUri is null or not.
+        // Either way the write is queued and happens in the background; the queue shows a toast
+        // once it knows whether it succeeded.
         if (mCurrentPetUri == null) {
-            // This is a NEW pet, so insert a new pet into the provider,
-            // returning the content URI for the new pet.
-            Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_pet_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // This is a NEW pet, so insert a new pet into the provider
+            saveQueue.enqueueInsert(values);
         } else {
             // Otherwise this is an EXISTING pet, so update the pet with content URI: mCurrentPetUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentPetUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentPetUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_pet_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // and pass in the new ContentValues. mCurrentPetUri already identifies the correct row
+            // in the database that we want to modify.
+            saveQueue.enqueueUpdate(mCurrentPetUri, values);
         }
     }
 
@@ -255,10 +317,11 @@ public class EditorActivity extends AppCompatActivity implements
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        // If this is a new pet, hide the "Delete" menu item.
+        // If this is a new pet, hide the "Delete" and "Choose photo" menu items.
         if (mCurrentPetUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            menu.findItem(R.id.action_choose_photo).setVisible(false);
         }
         return true;
     }
@@ -274,6 +337,12 @@ public class EditorActivity extends AppCompatActivity implements
                 // Exit activity
                 finish();
                 return true;
+            // Respond to a click on the "Choose photo" menu option
+            case R.id.action_choose_photo:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("image/*");
+                startActivityForResult(intent, REQUEST_PICK_PHOTO);
+                return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
                 // Pop up confirmation dialog for deletion
@@ -335,6 +404,8 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+        mLoadStartNanos = System.nanoTime();
+
         // Since the editor shows all pet attributes, define a projection that contains
         // all columns from the pet table
         String[] projection = {
@@ -355,6 +426,23 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        long traceStart = PetTrace.begin("EditorActivity.onLoadFinished");
+        try {
+            bindPet(cursor);
+        } finally {
+            PetTrace.end("EditorActivity.onLoadFinished", traceStart,
+                    cursor == null ? 0 : cursor.getCount());
+        }
+        if (PetTrace.isEnabled()) {
+            Log.d(PetTrace.LOG_TAG, "EditorActivity load took "
+                    + (System.nanoTime() - mLoadStartNanos) / 1000 + " us");
+        }
+    }
+
+    /**
+     * Fill the editor fields from the single row in the given cursor.
+     */
+    private void bindPet(Cursor cursor) {
         // Bail early if the cursor is null or there is less than 1 row in the cursor
         if (cursor == null || cursor.getCount() < 1) {
             return;
@@ -375,28 +463,45 @@ public class EditorActivity extends AppCompatActivity implements
             int gender = cursor.getInt(genderColumnIndex);
             int weight = cursor.getInt(weightColumnIndex);
 
-            // Update the views on the screen with the values from the database
-            mNameEditText.setText(name);
-            mBreedEditText.setText(breed);
-            mWeightEditText.setText(Integer.toString(weight));
-
-            // Gender is a dropdown spinner, so map the constant value from the database
-            // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
-            // Then call setSelection() so that option is displayed on screen as the current selection.
-            switch (gender) {
-                case PetEntry.GENDER_MALE:
-                    mGenderSpinner.setSelection(1);
-                    break;
-                case PetEntry.GENDER_FEMALE:
-                    mGenderSpinner.setSelection(2);
-                    break;
-                default:
-                    mGenderSpinner.setSelection(0);
-                    break;
+            if (!mOpenRecorded) {
+                PetRecordCache.getInstance(this).recordOpen(false,
+                        (System.nanoTime() - mOpenStartNanos) / 1000);
+                mOpenRecorded = true;
+            }
+
+            // Don't overwrite anything the user already started editing
+            if (!mPetHasChanged) {
+                showPet(new PetRecord(ContentUris.parseId(mCurrentPetUri),
+                        name, breed, gender, weight));
             }
         }
     }
 
+    /**
+     * Update the views on the screen with the given pet attributes.
+     */
+    private void showPet(PetRecord record) {
+        mShownRecord = record;
+        mNameEditText.setText(record.name);
+        mBreedEditText.setText(record.breed);
+        mWeightEditText.setText(Integer.toString(record.weight));
+
+        // Gender is a dropdown spinner, so map the constant value from the database
+        // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
+        // Then call setSelection() so that option is displayed on screen as the current selection.
+        switch (record.gender) {
+            case PetEntry.GENDER_MALE:
+                mGenderSpinner.setSelection(1);
+                break;
+            case PetEntry.GENDER_FEMALE:
+                mGenderSpinner.setSelection(2);
+                break;
+            default:
+                mGenderSpinner.setSelection(0);
+                break;
+        }
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
@@ -464,6 +569,119 @@ public class EditorActivity extends AppCompatActivity implements
         alertDialog.show();
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_PICK_PHOTO && resultCode == RESULT_OK && data != null
+                && data.getData() != null && mCurrentPetUri != null) {
+            new PhotoCopyTask(getApplicationContext(), mCurrentPetUri).execute(data.getData());
+        }
+    }
+
+    /**
+     * Copies a picked image into the pet's photo in the background; the provider makes the
+     * thumbnail from it. The provider only decodes the photo once the copy is done, on a thread
+     * of its own, and drops an image it cannot decode, so the copy only counts as saved once the
+     * pet's photo time changes, within {@link #STORE_TIMEOUT_MS}. Only holds the application
+     * context, so it doesn't leak the activity.
+     */
+    private static class PhotoCopyTask extends AsyncTask<Uri, Void, Boolean> {
+
+        /** Longest the provider may take to store the photo after the copy */
+        private static final long STORE_TIMEOUT_MS = 30000;
+
+        private final Context mContext;
+        private final Uri mPetUri;
+
+        PhotoCopyTask(Context context, Uri petUri) {
+            mContext = context;
+            mPetUri = petUri;
+        }
+
+        @Override
+        protected Boolean doInBackground(Uri... sources) {
+            ContentResolver resolver = mContext.getContentResolver();
+            Uri photoUri = PetEntry.buildPhotoUri(ContentUris.parseId(mPetUri));
+            // The provider notifies the pet's URI once it stored the photo
+            final Semaphore changed = new Semaphore(0);
+            ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    changed.release();
+                }
+            };
+            resolver.registerContentObserver(mPetUri, false, observer);
+            try {
+                long photoUpdatedAt = queryPhotoUpdatedAt(resolver);
+                InputStream in = resolver.openInputStream(sources[0]);
+                if (in == null) {
+                    return false;
+                }
+                try {
+                    OutputStream out = resolver.openOutputStream(photoUri);
+                    if (out == null) {
+                        return false;
+                    }
+                    try {
+                        byte[] buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+
+                long deadline = SystemClock.elapsedRealtime() + STORE_TIMEOUT_MS;
+                long storedAt;
+                while ((storedAt = queryPhotoUpdatedAt(resolver)) == photoUpdatedAt) {
+                    long remaining = deadline - SystemClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        Log.e(LOG_TAG, "Photo of " + mPetUri + " was not stored");
+                        return false;
+                    }
+                    changed.tryAcquire(remaining, TimeUnit.MILLISECONDS);
+                }
+                // Unless the pet was deleted in the meantime
+                return storedAt > 0;
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Failed to copy photo into " + photoUri, e);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                resolver.unregisterContentObserver(observer);
+            }
+        }
+
+        /**
+         * Returns when the pet's photo was last stored, 0 if it has none, or -1 if the pet is
+         * gone.
+         */
+        private long queryPhotoUpdatedAt(ContentResolver resolver) {
+            Cursor cursor = resolver.query(mPetUri,
+                    new String[] { PetEntry.COLUMN_PET_PHOTO_UPDATED_AT }, null, null, null);
+            if (cursor == null) {
+                return -1;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            Toast.makeText(mContext, success ? R.string.editor_photo_saved
+                    : R.string.editor_photo_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     /**
      * Perform the deletion of the pet in the database.
      */
@@ -481,9 +699,13 @@ public class EditorActivity extends AppCompatActivity implements
                 Toast.makeText(this, getString(R.string.editor_delete_pet_failed),
                         Toast.LENGTH_SHORT).show();
             } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_delete_pet_successful),
-                        Toast.LENGTH_SHORT).show();
+                // Otherwise, the delete was successful. Go back to the catalog, which offers to
+                // undo it for a while.
+                Intent intent = new Intent(this, CatalogActivity.class);
+                intent.putExtra(CatalogActivity.EXTRA_DELETED_PET_ID,
+                        ContentUris.parseId(mCurrentPetUri));
+                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                startActivity(intent);
             }
         }
 
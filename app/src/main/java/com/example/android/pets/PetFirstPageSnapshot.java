@@ -0,0 +1,162 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.pets.data.PetTrace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The first screen of the unfiltered catalog, kept in a small file so a cold start can show it
+ * straight away, before the provider has even opened the database. The catalog saves it after
+ * every unfiltered load, i.e. whenever the pets change while it is open, and shows it on launch
+ * until the live rows arrive; since the live rows are diffed against it, only the rows that
+ * changed in the meantime are rebound.
+ */
+public final class PetFirstPageSnapshot {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetFirstPageSnapshot.class.getSimpleName();
+
+    /** Number of rows kept: a screen's worth, even on a tablet */
+    static final int MAX_ROWS = 30;
+
+    private static final String FILE_NAME = "catalog_first_page";
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** Writes the snapshot in the background, one save at a time */
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+
+    /** Rows last saved or read in this process, so an unchanged first page isn't written again */
+    private static List<PetRow> sLastRows;
+
+    // Prevent someone from accidentally instantiating the class
+    private PetFirstPageSnapshot() {}
+
+    /**
+     * Read the saved first page. The file is a few kilobytes at most, so this is quick enough to
+     * do while the activity is created, which is the point: the rows are there for the very
+     * first frame.
+     *
+     * @return the saved rows, or an empty list if there are none or they can't be read.
+     */
+    public static List<PetRow> read(Context context) {
+        long traceStart = PetTrace.begin("PetFirstPageSnapshot.read");
+        List<PetRow> rows = Collections.emptyList();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(getFile(context))));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return rows;
+                }
+                int count = Math.min(in.readInt(), MAX_ROWS);
+                List<PetRow> readRows = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    String name = in.readUTF();
+                    String breed = in.readBoolean() ? in.readUTF() : null;
+                    readRows.add(new PetRow(id, name, breed, in.readLong()));
+                }
+                rows = Collections.unmodifiableList(readRows);
+                synchronized (PetFirstPageSnapshot.class) {
+                    sLastRows = rows;
+                }
+                return rows;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Never saved yet
+            return rows;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the first page", e);
+            return rows;
+        } finally {
+            PetTrace.end("PetFirstPageSnapshot.read", traceStart, rows.size());
+        }
+    }
+
+    /**
+     * Save the first {@link #MAX_ROWS} of the given rows in the background, unless they are what
+     * was last saved. Rows of a {@link PetRowWindow} that haven't loaded yet end the page early.
+     */
+    public static void save(Context context, List<PetRow> rows) {
+        List<PetRow> firstPage = new ArrayList<>(Math.min(rows.size(), MAX_ROWS));
+        for (int i = 0; i < rows.size() && i < MAX_ROWS; i++) {
+            PetRow row = rows.get(i);
+            if (row == null) {
+                break;
+            }
+            firstPage.add(row);
+        }
+        synchronized (PetFirstPageSnapshot.class) {
+            if (firstPage.equals(sLastRows)) {
+                return;
+            }
+            sLastRows = firstPage;
+        }
+
+        final File file = getFile(context);
+        final List<PetRow> page = firstPage;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(file, page);
+            }
+        });
+    }
+
+    /**
+     * Write the rows to a temporary file and rename it into place, so a launch never reads a
+     * half-written page.
+     */
+    private static void write(File file, List<PetRow> rows) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporary)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(rows.size());
+                for (PetRow row : rows) {
+                    out.writeLong(row.id);
+                    out.writeUTF(row.name == null ? "" : row.name);
+                    out.writeBoolean(row.breed != null);
+                    if (row.breed != null) {
+                        out.writeUTF(row.breed);
+                    }
+                    out.writeLong(row.photoUpdatedAt);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                Log.w(LOG_TAG, "Failed to replace " + file);
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to save the first page", e);
+            temporary.delete();
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+}
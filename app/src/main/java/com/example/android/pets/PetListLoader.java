@@ -0,0 +1,246 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQuery;
+import com.example.android.pets.data.PetQueryBudgetException;
+import com.example.android.pets.data.PetTrace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the catalog on a background thread and hands back an immutable list of {@link PetRow}s.
+ *
+ * Unlike a {@link android.content.CursorLoader}, the cursor is read and closed inside
+ * {@link #loadInBackground()}, so the snapshot can be diffed against the previous one off the
+ * main thread and only the rows that changed get rebound.
+ *
+ * An optional filter restricts the list to pets whose name or breed contains the given text.
+ * Restarting the loader with a new filter cancels the query in progress through a
+ * {@link CancellationSignal}, so SQLite stops scanning for the old filter straight away.
+ *
+ * Catalogs with more than {@link #WINDOW_THRESHOLD} pets aren't snapshotted at all; the loader
+ * returns a {@link PetRowWindow} that pages rows in as the list scrolls.
+ */
+public class PetListLoader extends AsyncTaskLoader<List<PetRow>> {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetListLoader.class.getSimpleName();
+
+    /** Columns the catalog shows */
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_PHOTO_UPDATED_AT };
+
+    /** Above this many pets the catalog is shown through a {@link PetRowWindow} */
+    static final int WINDOW_THRESHOLD = 5000;
+
+    /** Reloads the list whenever the pets table changes */
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /** Last snapshot delivered to the activity */
+    private List<PetRow> mRows;
+
+    /** Whether {@link #mObserver} is currently registered */
+    private boolean mObserving;
+
+    /** {@link PetSaveQueue} commit sequence read before the load in progress started */
+    private volatile long mLoadingSaveSequence;
+
+    /** {@link PetSaveQueue} commit sequence the last delivered rows are known to include */
+    private long mDeliveredSaveSequence;
+
+    /** Text the list is filtered by, or null to show every pet */
+    private final String mFilter;
+
+    /** Signal for the query in progress, or null if there is none */
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * Constructs a new {@link PetListLoader}.
+     *
+     * @param context is the context.
+     * @param filter is the text to filter by, or null for no filter.
+     */
+    public PetListLoader(Context context, String filter) {
+        super(context);
+        mFilter = TextUtils.isEmpty(filter) ? null : filter;
+    }
+
+    /**
+     * Returns the text this loader filters by, or null if it shows every pet.
+     */
+    public String getFilter() {
+        return mFilter;
+    }
+
+    @Override
+    public List<PetRow> loadInBackground() {
+        long traceStart = PetTrace.begin("PetListLoader.loadInBackground");
+        List<PetRow> rows = Collections.emptyList();
+        try {
+            // Every save committed before this point is guaranteed to be in the rows we read
+            mLoadingSaveSequence = PetSaveQueue.getInstance(getContext()).getCommitSequence();
+
+            synchronized (this) {
+                if (isLoadInBackgroundCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                mCancellationSignal = new CancellationSignal();
+            }
+            try {
+                rows = load(getContext().getContentResolver(), mCancellationSignal);
+            } catch (PetQueryBudgetException e) {
+                // The provider gave up on the query; show an empty list rather than crash
+                Log.e(LOG_TAG, "Failed to load the catalog", e);
+            } finally {
+                synchronized (this) {
+                    mCancellationSignal = null;
+                }
+            }
+            return rows;
+        } finally {
+            PetTrace.end("PetListLoader.loadInBackground", traceStart, rows.size());
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    /**
+     * Query the provider for the catalog rows matching the filter.
+     */
+    private List<PetRow> load(ContentResolver resolver, CancellationSignal cancellationSignal) {
+        PetQuery.Builder builder = new PetQuery.Builder();
+        if (mFilter != null) {
+            builder.nameOrBreedContains(mFilter);
+        }
+        PetQuery query = builder.build();
+        String selection = query.getSelection();
+        String[] selectionArgs = query.getSelectionArgs();
+
+        int count = countPets(resolver, selection, selectionArgs, cancellationSignal);
+        if (count > WINDOW_THRESHOLD) {
+            return new PetRowWindow(resolver, count, selection, selectionArgs);
+        }
+
+        Cursor cursor = query.query(resolver, PROJECTION, cancellationSignal);
+        if (cursor == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return readRows(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of pets in the provider matching the selection.
+     */
+    private static int countPets(ContentResolver resolver, String selection,
+                                 String[] selectionArgs, CancellationSignal cancellationSignal) {
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI, new String[] { "COUNT(*)" },
+                selection, selectionArgs, null, cancellationSignal);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copy every row of the cursor into an unmodifiable list.
+     */
+    private static List<PetRow> readRows(Cursor cursor) {
+        // Resolve the column indices once for the whole cursor
+        int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        int photoColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO_UPDATED_AT);
+
+        List<PetRow> rows = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            rows.add(new PetRow(cursor.getLong(idColumnIndex),
+                    cursor.getString(nameColumnIndex),
+                    cursor.getString(breedColumnIndex),
+                    cursor.getLong(photoColumnIndex)));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    @Override
+    public void deliverResult(List<PetRow> rows) {
+        if (isReset()) {
+            return;
+        }
+        if (rows != mRows) {
+            mRows = rows;
+            mDeliveredSaveSequence = mLoadingSaveSequence;
+        }
+        if (isStarted()) {
+            super.deliverResult(rows);
+        }
+    }
+
+    /**
+     * Returns the {@link PetSaveQueue#getCommitSequence()} the last delivered rows include,
+     * for use with {@link PetSaveQueue#applyTo(List, long)}.
+     */
+    public long getDeliveredSaveSequence() {
+        return mDeliveredSaveSequence;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(
+                    PetEntry.CONTENT_URI, true, mObserver);
+            mObserving = true;
+        }
+        if (mRows != null) {
+            deliverResult(mRows);
+        }
+        if (takeContentChanged() || mRows == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mRows = null;
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.pets;
+
+/**
+ * Immutable copy of every editable attribute of one pet, as shown by the {@link EditorActivity}.
+ */
+public final class PetRecord {
+
+    /** ID of the pet in the pets table */
+    public final long id;
+
+    /** Name of the pet */
+    public final String name;
+
+    /** Breed of the pet (may be null or empty) */
+    public final String breed;
+
+    /** Gender of the pet, one of the PetEntry GENDER_* constants */
+    public final int gender;
+
+    /** Weight of the pet in kg */
+    public final int weight;
+
+    public PetRecord(long id, String name, String breed, int gender, int weight) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTrace;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small process-wide cache of full {@link PetRecord}s, filled ahead of time by the catalog so
+ * the {@link EditorActivity} can show a pet without waiting for its own query.
+ *
+ * Any change to the pets table drops every entry, and entries also expire after
+ * {@link #MAX_AGE_MS}, so a record handed out by {@link #getFresh(long)} is never older than
+ * the last write the provider reported.
+ */
+public final class PetRecordCache {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetRecordCache.class.getSimpleName();
+
+    /** Maximum number of records kept */
+    private static final int MAX_ENTRIES = 200;
+
+    /** Records older than this are treated as missing */
+    private static final long MAX_AGE_MS = 30 * 1000;
+
+    /** Columns the editor shows */
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /** SQLite limits the number of "?" arguments, so prefetch in chunks well below it */
+    private static final int MAX_IDS_PER_QUERY = 100;
+
+    private static PetRecordCache sInstance;
+
+    /**
+     * A cached record and the time it was read from the provider.
+     */
+    private static final class Entry {
+        final PetRecord record;
+        final long loadedAt;
+
+        Entry(PetRecord record, long loadedAt) {
+            this.record = record;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final LruCache<Long, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+
+    /** Bumped on every change to the pets table, so in-flight prefetches can tell they're stale */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Statistics on how often the editor could open from the cache, and how fast
+    private int mHits;
+    private int mMisses;
+    private long mHitOpenMicros;
+    private long mMissOpenMicros;
+
+    /**
+     * Returns the process-wide cache, creating it on first use.
+     */
+    public static synchronized PetRecordCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetRecordCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetRecordCache(Context context) {
+        mResolver = context.getContentResolver();
+        mResolver.registerContentObserver(PetEntry.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mGeneration.incrementAndGet();
+                        mEntries.evictAll();
+                    }
+                });
+    }
+
+    /**
+     * Returns the cached record for the given pet if it is fresh, or null otherwise.
+     */
+    public PetRecord getFresh(long id) {
+        Entry entry = mEntries.get(id);
+        if (entry == null || SystemClock.uptimeMillis() - entry.loadedAt > MAX_AGE_MS) {
+            return null;
+        }
+        return entry.record;
+    }
+
+    /**
+     * Load the records for the given pets in the background, skipping the ones already cached.
+     */
+    public void prefetch(Collection<Long> ids) {
+        final List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            if (getFresh(id) == null) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int start = 0; start < missing.size(); start += MAX_IDS_PER_QUERY) {
+                    load(missing.subList(start,
+                            Math.min(start + MAX_IDS_PER_QUERY, missing.size())));
+                }
+            }
+        });
+    }
+
+    /**
+     * Query one chunk of records and cache them, unless the table changed in the meantime.
+     * Runs on the prefetch thread.
+     */
+    private void load(List<Long> ids) {
+        long traceStart = PetTrace.begin("PetRecordCache.load");
+        int rows = 0;
+        try {
+            int generation = mGeneration.get();
+
+            StringBuilder selection = new StringBuilder(PetEntry._ID).append(" IN (");
+            String[] selectionArgs = new String[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = String.valueOf(ids.get(i));
+            }
+            selection.append(')');
+
+            Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PROJECTION,
+                    selection.toString(), selectionArgs, null);
+            if (cursor == null) {
+                return;
+            }
+            List<PetRecord> records = new ArrayList<>(cursor.getCount());
+            try {
+                int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+                int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+                int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+                int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+                int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+                while (cursor.moveToNext()) {
+                    records.add(new PetRecord(cursor.getLong(idColumnIndex),
+                            cursor.getString(nameColumnIndex),
+                            cursor.getString(breedColumnIndex),
+                            cursor.getInt(genderColumnIndex),
+                            cursor.getInt(weightColumnIndex)));
+                }
+            } finally {
+                cursor.close();
+            }
+            rows = records.size();
+
+            // Drop the results if the table changed while we were reading it
+            if (generation != mGeneration.get()) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            for (PetRecord record : records) {
+                mEntries.put(record.id, new Entry(record, now));
+            }
+            // A change could have landed while we were filling the cache
+            if (generation != mGeneration.get()) {
+                mEntries.evictAll();
+            }
+        } finally {
+            PetTrace.end("PetRecordCache.load", traceStart, rows);
+        }
+    }
+
+    /**
+     * Record how long the editor took to show a pet, and whether it came from the cache.
+     * Logs the running hit rate and the average open latency with and without a hit.
+     */
+    public synchronized void recordOpen(boolean hit, long micros) {
+        if (hit) {
+            mHits++;
+            mHitOpenMicros += micros;
+        } else {
+            mMisses++;
+            mMissOpenMicros += micros;
+        }
+        Log.d(LOG_TAG, "Editor opened in " + micros + " us (" + (hit ? "hit" : "miss")
+                + "); hit rate " + (100 * mHits / (mHits + mMisses)) + "%, average "
+                + (mHits == 0 ? 0 : mHitOpenMicros / mHits) + " us on hit vs "
+                + (mMisses == 0 ? 0 : mMissOpenMicros / mMisses) + " us on miss");
+    }
+}
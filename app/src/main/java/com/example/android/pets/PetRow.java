@@ -0,0 +1,56 @@
+package com.example.android.pets;
+
+import android.text.TextUtils;
+
+/**
+ * Immutable snapshot of one row of the catalog: the pet's ID, name and breed, and when its photo
+ * was last written.
+ *
+ * Rows are read off the {@link android.database.Cursor} on the loader's background thread, so
+ * the list can be diffed and bound without touching the database from the main thread.
+ */
+public final class PetRow {
+
+    /** ID of the pet in the pets table */
+    public final long id;
+
+    /** Name of the pet */
+    public final String name;
+
+    /** Breed of the pet (may be null or empty) */
+    public final String breed;
+
+    /** When the pet's photo was last written, or 0 if it has none */
+    public final long photoUpdatedAt;
+
+    public PetRow(long id, String name, String breed, long photoUpdatedAt) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.photoUpdatedAt = photoUpdatedAt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PetRow)) {
+            return false;
+        }
+        PetRow other = (PetRow) o;
+        return id == other.id
+                && TextUtils.equals(name, other.name)
+                && TextUtils.equals(breed, other.breed)
+                && photoUpdatedAt == other.photoUpdatedAt;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ (id >>> 32));
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        result = 31 * result + (breed == null ? 0 : breed.hashCode());
+        result = 31 * result + (int) (photoUpdatedAt ^ (photoUpdatedAt >>> 32));
+        return result;
+    }
+}
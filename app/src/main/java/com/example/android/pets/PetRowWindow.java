@@ -0,0 +1,316 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTrace;
+
+import java.util.AbstractList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Windowed view of the whole catalog for tables too large to snapshot in one go.
+ *
+ * Only the total row count is known up front. Rows are loaded in fixed-size blocks keyed by
+ * position on a background thread, blocks ahead of the scroll direction are prefetched, and
+ * blocks far away from the visible range are evicted, so at most {@link #MAX_BLOCKS} blocks
+ * are ever held no matter how many pets there are.
+ *
+ * {@link #get(int)} returns null for a row whose block hasn't arrived yet; the
+ * {@link Listener} is told once it has. All methods must be called on the main thread.
+ */
+public class PetRowWindow extends AbstractList<PetRow> {
+
+    /**
+     * Callback for blocks of rows that finished loading.
+     */
+    public interface Listener {
+        void onRowsLoaded(int positionStart, int itemCount);
+    }
+
+    /** Number of rows in each block */
+    static final int BLOCK_SIZE = 100;
+
+    /** Maximum number of blocks kept in memory */
+    static final int MAX_BLOCKS = 10;
+
+    /** Number of blocks loaded ahead of the visible range in the scroll direction */
+    private static final int PREFETCH_BLOCKS = 2;
+
+    /** Columns the catalog shows */
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_PHOTO_UPDATED_AT };
+
+    /** Rows are always paged in _id order so neighbouring blocks can be found by key */
+    private static final String SORT_ORDER = PetEntry._ID + " ASC";
+
+    /** Loads blocks one at a time, in the order they were asked for */
+    private static final Executor sLoadExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * A loaded block of rows. Blocks carried over from a previous window are marked stale: they
+     * are still shown, to avoid flashing empty rows, but get reloaded the first time they're read.
+     */
+    private static final class Block {
+        final PetRow[] rows;
+        boolean stale;
+
+        Block(PetRow[] rows) {
+            this.rows = rows;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mCount;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Loaded blocks, keyed by block index */
+    private final SparseArray<Block> mBlocks = new SparseArray<>();
+
+    /** Blocks currently queued or loading */
+    private final Set<Integer> mPendingBlocks = new HashSet<>();
+
+    private Listener mListener;
+
+    /** Visible block range, also read by the loading thread to skip blocks no longer needed */
+    private volatile int mFirstVisibleBlock;
+    private volatile int mLastVisibleBlock;
+
+    /** Set once the window has been replaced, so late loads are dropped */
+    private volatile boolean mClosed;
+
+    /**
+     * Constructs a new {@link PetRowWindow}.
+     *
+     * @param resolver is used to load the blocks.
+     * @param count is the total number of pets matching the selection.
+     * @param selection restricts the rows shown, or null to show every pet.
+     * @param selectionArgs are the arguments of the selection.
+     */
+    public PetRowWindow(ContentResolver resolver, int count, String selection,
+                        String[] selectionArgs) {
+        mResolver = resolver;
+        mCount = count;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int size() {
+        return mCount;
+    }
+
+    @Override
+    public PetRow get(int position) {
+        int blockIndex = position / BLOCK_SIZE;
+        Block block = mBlocks.get(blockIndex);
+        if (block == null || block.stale) {
+            requestBlock(blockIndex);
+        }
+        if (block == null) {
+            return null;
+        }
+        int offset = position % BLOCK_SIZE;
+        return offset < block.rows.length ? block.rows[offset] : null;
+    }
+
+    /**
+     * Tell the window which positions are on screen and which way the list is scrolling,
+     * so it can load the visible blocks, prefetch ahead and drop blocks far out of view.
+     */
+    public void onVisibleRangeChanged(int firstPosition, int lastPosition, boolean forward) {
+        if (firstPosition < 0 || lastPosition < firstPosition) {
+            return;
+        }
+        mFirstVisibleBlock = firstPosition / BLOCK_SIZE;
+        mLastVisibleBlock = lastPosition / BLOCK_SIZE;
+
+        for (int i = mFirstVisibleBlock; i <= mLastVisibleBlock; i++) {
+            requestBlock(i);
+        }
+        for (int i = 1; i <= PREFETCH_BLOCKS; i++) {
+            requestBlock(forward ? mLastVisibleBlock + i : mFirstVisibleBlock - i);
+        }
+        evictFarBlocks();
+    }
+
+    /**
+     * Take over the blocks of the window this one replaces, marked stale, so the rows on screen
+     * keep their old values until the fresh ones arrive.
+     */
+    public void seedFrom(PetRowWindow previous) {
+        mFirstVisibleBlock = previous.mFirstVisibleBlock;
+        mLastVisibleBlock = previous.mLastVisibleBlock;
+        int lastBlock = (mCount - 1) / BLOCK_SIZE;
+        for (int i = 0; i < previous.mBlocks.size(); i++) {
+            int blockIndex = previous.mBlocks.keyAt(i);
+            if (blockIndex <= lastBlock) {
+                Block block = new Block(previous.mBlocks.valueAt(i).rows);
+                block.stale = true;
+                mBlocks.put(blockIndex, block);
+            }
+        }
+    }
+
+    /**
+     * Stop delivering rows. Called when the window is replaced by a newer one.
+     */
+    public void close() {
+        mClosed = true;
+        mListener = null;
+    }
+
+    /**
+     * Queue a background load of the given block unless it is out of range or already pending.
+     */
+    private void requestBlock(final int blockIndex) {
+        if (blockIndex < 0 || blockIndex * BLOCK_SIZE >= mCount
+                || mPendingBlocks.contains(blockIndex)) {
+            return;
+        }
+        Block block = mBlocks.get(blockIndex);
+        if (block != null && !block.stale) {
+            return;
+        }
+        mPendingBlocks.add(blockIndex);
+
+        // If the block before this one is loaded and fresh, start right after its last ID
+        // instead of making SQLite count its way through an OFFSET.
+        Block previous = mBlocks.get(blockIndex - 1);
+        final long afterId = previous != null && !previous.stale && previous.rows.length > 0
+                ? previous.rows[previous.rows.length - 1].id : -1;
+
+        sLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PetRow[] rows = isWanted(blockIndex) ? loadBlock(blockIndex, afterId) : null;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverBlock(blockIndex, rows);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Whether a block is still close enough to the visible range to be worth loading.
+     */
+    private boolean isWanted(int blockIndex) {
+        return !mClosed
+                && blockIndex >= mFirstVisibleBlock - MAX_BLOCKS / 2
+                && blockIndex <= mLastVisibleBlock + MAX_BLOCKS / 2;
+    }
+
+    /**
+     * Query one block of rows from the provider. Runs on the loading thread.
+     */
+    private PetRow[] loadBlock(int blockIndex, long afterId) {
+        long traceStart = PetTrace.begin("PetRowWindow.loadBlock");
+        PetRow[] rows = new PetRow[0];
+        try {
+            Uri.Builder uri = PetEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(BLOCK_SIZE));
+            String selection = mSelection;
+            String[] selectionArgs = mSelectionArgs;
+            if (afterId >= 0) {
+                selection = mSelection == null ? PetEntry._ID + ">?"
+                        : PetEntry._ID + ">? AND (" + mSelection + ")";
+                int extraArgs = mSelectionArgs == null ? 0 : mSelectionArgs.length;
+                selectionArgs = new String[extraArgs + 1];
+                selectionArgs[0] = String.valueOf(afterId);
+                if (extraArgs > 0) {
+                    System.arraycopy(mSelectionArgs, 0, selectionArgs, 1, extraArgs);
+                }
+            } else {
+                uri.appendQueryParameter(PetContract.QUERY_PARAMETER_OFFSET,
+                        String.valueOf(blockIndex * BLOCK_SIZE));
+            }
+
+            Cursor cursor = mResolver.query(uri.build(), PROJECTION, selection, selectionArgs,
+                    SORT_ORDER);
+            if (cursor == null) {
+                return rows;
+            }
+            try {
+                int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+                int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+                int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+                int photoColumnIndex =
+                        cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO_UPDATED_AT);
+
+                rows = new PetRow[cursor.getCount()];
+                int i = 0;
+                while (cursor.moveToNext()) {
+                    rows[i++] = new PetRow(cursor.getLong(idColumnIndex),
+                            cursor.getString(nameColumnIndex),
+                            cursor.getString(breedColumnIndex),
+                            cursor.getLong(photoColumnIndex));
+                }
+            } finally {
+                cursor.close();
+            }
+            return rows;
+        } finally {
+            PetTrace.end("PetRowWindow.loadBlock", traceStart, rows.length);
+        }
+    }
+
+    /**
+     * Store a freshly loaded block and notify the listener. Runs on the main thread.
+     */
+    private void deliverBlock(int blockIndex, PetRow[] rows) {
+        mPendingBlocks.remove(blockIndex);
+        if (mClosed || rows == null) {
+            return;
+        }
+        mBlocks.put(blockIndex, new Block(rows));
+        evictFarBlocks();
+        if (mListener != null) {
+            int positionStart = blockIndex * BLOCK_SIZE;
+            mListener.onRowsLoaded(positionStart,
+                    Math.min(BLOCK_SIZE, mCount - positionStart));
+        }
+    }
+
+    /**
+     * Drop the blocks furthest from the visible range until at most {@link #MAX_BLOCKS} remain.
+     */
+    private void evictFarBlocks() {
+        while (mBlocks.size() > MAX_BLOCKS) {
+            int farthestIndex = 0;
+            int farthestDistance = -1;
+            for (int i = 0; i < mBlocks.size(); i++) {
+                int blockIndex = mBlocks.keyAt(i);
+                int distance = blockIndex < mFirstVisibleBlock
+                        ? mFirstVisibleBlock - blockIndex
+                        : Math.max(0, blockIndex - mLastVisibleBlock);
+                if (distance > farthestDistance) {
+                    farthestDistance = distance;
+                    farthestIndex = i;
+                }
+            }
+            mBlocks.removeAt(farthestIndex);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTrace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Write-behind queue for pets saved in the {@link EditorActivity}.
+ *
+ * Saves are queued and written to the provider one at a time on a background thread, so the
+ * editor can close straight away. Until the catalog has reloaded with a write applied, the queued
+ * values are laid over the catalog rows by {@link #applyTo(List, long)} so the change shows up
+ * at once. A toast reports whether each write succeeded once it completes.
+ *
+ * Updates to a pet that are queued but not yet started are merged into a single write.
+ */
+public final class PetSaveQueue {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetSaveQueue.class.getSimpleName();
+
+    /**
+     * Callback for changes to the set of pending saves. Always called on the main thread.
+     */
+    public interface Listener {
+        void onPendingSavesChanged();
+    }
+
+    /**
+     * A queued insert or update.
+     */
+    private static final class PendingSave {
+        /** URI of the pet being updated, or null for an insert */
+        final Uri uri;
+        /** ID shown in the catalog: the pet's ID for an update, a negative placeholder for an insert */
+        final long id;
+        /** Values to write. Further updates are merged in until the write starts. */
+        final ContentValues values;
+        /** Commit sequence number once written, or 0 while still pending */
+        long committedSequence;
+        /** ID the provider gave an inserted pet once written, or 0 */
+        long insertedId;
+
+        PendingSave(Uri uri, long id, ContentValues values) {
+            this.uri = uri;
+            this.id = id;
+            this.values = values;
+        }
+    }
+
+    /** Number of editable columns a full save writes */
+    public static final int ALL_COLUMNS = 4;
+
+    private static PetSaveQueue sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /** Guards all of the state below, which the writer thread also reads */
+    private final Object mLock = new Object();
+
+    /** Every save that may still need to be shown over the catalog rows, oldest first */
+    private final List<PendingSave> mSaves = new ArrayList<>();
+
+    /** Updates that haven't been started yet, keyed by pet URI, so later saves can merge in */
+    private final Map<Uri, PendingSave> mQueuedUpdates = new HashMap<>();
+
+    /** Incremented every time a write completes successfully */
+    private long mCommitSequence;
+
+    /** Next placeholder ID for a pet that hasn't been inserted yet */
+    private long mNextPlaceholderId = -1;
+
+    // Statistics on work the editor's dirty-field tracking saved the provider
+    private int mSkippedWrites;
+    private int mSkippedColumns;
+
+    /**
+     * Returns the process-wide queue, creating it on first use.
+     */
+    public static synchronized PetSaveQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetSaveQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetSaveQueue(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queue the insertion of a new pet.
+     */
+    public void enqueueInsert(ContentValues values) {
+        PendingSave save;
+        synchronized (mLock) {
+            save = new PendingSave(null, mNextPlaceholderId--, new ContentValues(values));
+            mSaves.add(save);
+        }
+        schedule(save);
+        notifyListeners();
+    }
+
+    /**
+     * Queue an update of the pet with the given content URI. If an earlier update of the same
+     * pet hasn't started yet, the new values are merged into it instead.
+     */
+    public void enqueueUpdate(Uri petUri, ContentValues values) {
+        PendingSave save;
+        synchronized (mLock) {
+            save = mQueuedUpdates.get(petUri);
+            if (save != null) {
+                save.values.putAll(values);
+                save = null;
+            } else {
+                save = new PendingSave(petUri, Long.parseLong(petUri.getLastPathSegment()),
+                        new ContentValues(values));
+                mSaves.add(save);
+                mQueuedUpdates.put(petUri, save);
+            }
+        }
+        if (save != null) {
+            schedule(save);
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Record that a save left out the given number of unchanged columns. Leaving out all of
+     * them means the write, and the change notification it would have sent, were skipped.
+     */
+    public void recordSkippedSave(int unchangedColumns) {
+        synchronized (mLock) {
+            if (unchangedColumns == ALL_COLUMNS) {
+                mSkippedWrites++;
+            }
+            mSkippedColumns += unchangedColumns;
+            Log.d(LOG_TAG, "Skipped " + mSkippedWrites + " no-op writes and notifications, "
+                    + mSkippedColumns + " unchanged columns so far");
+        }
+    }
+
+    /**
+     * Returns the number of writes completed so far. A catalog query started after reading this
+     * value is guaranteed to include all of those writes.
+     */
+    public long getCommitSequence() {
+        synchronized (mLock) {
+            return mCommitSequence;
+        }
+    }
+
+    /**
+     * Lay the pending saves over the given catalog rows: updated pets show their new name and
+     * breed, and pets still being inserted are appended at the end. Saves already reflected in
+     * rows loaded at {@code loadedSequence} (see {@link #getCommitSequence()}) are dropped.
+     *
+     * Windowed catalogs are returned unchanged.
+     */
+    public List<PetRow> applyTo(List<PetRow> rows, long loadedSequence) {
+        if (rows instanceof PetRowWindow) {
+            return rows;
+        }
+        Map<Long, ContentValues> updates = new HashMap<>();
+        List<PetRow> inserts = new ArrayList<>();
+        // Placeholder rows of inserts already written, by the ID the provider gave them
+        Map<Long, PetRow> writtenInserts = new HashMap<>();
+        synchronized (mLock) {
+            for (int i = mSaves.size() - 1; i >= 0; i--) {
+                PendingSave save = mSaves.get(i);
+                if (save.committedSequence != 0 && save.committedSequence <= loadedSequence) {
+                    mSaves.remove(i);
+                }
+            }
+            for (PendingSave save : mSaves) {
+                if (save.uri == null) {
+                    PetRow placeholder = new PetRow(save.id,
+                            save.values.getAsString(PetEntry.COLUMN_PET_NAME),
+                            save.values.getAsString(PetEntry.COLUMN_PET_BREED), 0);
+                    inserts.add(placeholder);
+                    if (save.insertedId != 0) {
+                        writtenInserts.put(save.insertedId, placeholder);
+                    }
+                } else {
+                    ContentValues merged = updates.get(save.id);
+                    if (merged == null) {
+                        merged = new ContentValues();
+                        updates.put(save.id, merged);
+                    }
+                    merged.putAll(save.values);
+                }
+            }
+        }
+        if (updates.isEmpty() && inserts.isEmpty()) {
+            return rows;
+        }
+
+        List<PetRow> result = new ArrayList<>(rows.size() + inserts.size());
+        for (PetRow row : rows) {
+            // A query that started just before an insert was written may still have read it
+            PetRow placeholder = writtenInserts.get(row.id);
+            if (placeholder != null) {
+                inserts.remove(placeholder);
+            }
+            ContentValues values = updates.get(row.id);
+            if (values == null) {
+                result.add(row);
+                continue;
+            }
+            result.add(new PetRow(row.id,
+                    values.containsKey(PetEntry.COLUMN_PET_NAME)
+                            ? values.getAsString(PetEntry.COLUMN_PET_NAME) : row.name,
+                    values.containsKey(PetEntry.COLUMN_PET_BREED)
+                            ? values.getAsString(PetEntry.COLUMN_PET_BREED) : row.breed,
+                    row.photoUpdatedAt));
+        }
+        result.addAll(inserts);
+        return result;
+    }
+
+    /**
+     * Run the given save on the writer thread.
+     */
+    private void schedule(final PendingSave save) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values;
+                synchronized (mLock) {
+                    // From here on, later updates of the same pet start a new write
+                    if (save.uri != null) {
+                        mQueuedUpdates.remove(save.uri);
+                    }
+                    values = new ContentValues(save.values);
+                }
+                Uri result = write(save.uri, values);
+                final boolean success = result != null;
+                recordWrite(save, result);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWriteFinished(save, success);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Perform one insert or update. Runs on the writer thread.
+     *
+     * @return the URI of the pet written, or null if the write failed.
+     */
+    private Uri write(Uri uri, ContentValues values) {
+        long traceStart = PetTrace.begin("PetSaveQueue.write");
+        try {
+            if (uri == null) {
+                return mResolver.insert(PetEntry.CONTENT_URI, values);
+            }
+            return mResolver.update(uri, values, null, null) != 0 ? uri : null;
+        } catch (IllegalArgumentException e) {
+            // The provider rejected the values
+            Log.e(LOG_TAG, "Failed to save pet " + uri, e);
+            return null;
+        } finally {
+            PetTrace.end("PetSaveQueue.write", traceStart, 1);
+        }
+    }
+
+    /**
+     * Record the outcome of a write. Runs on the writer thread as soon as the write returns, so
+     * a catalog query that reads the commit sequence afterwards is known to include the write
+     * and the save isn't laid over rows that already show it.
+     */
+    private void recordWrite(PendingSave save, Uri result) {
+        synchronized (mLock) {
+            if (result != null) {
+                save.committedSequence = ++mCommitSequence;
+                if (save.uri == null) {
+                    save.insertedId = ContentUris.parseId(result);
+                }
+            } else {
+                // Drop the optimistic row, the catalog will show what's really stored
+                mSaves.remove(save);
+            }
+        }
+    }
+
+    /**
+     * Report the outcome of a write to the user. Runs on the main thread.
+     */
+    private void onWriteFinished(PendingSave save, boolean success) {
+        int message;
+        if (save.uri == null) {
+            message = success ? R.string.editor_insert_pet_successful
+                    : R.string.editor_insert_pet_failed;
+        } else {
+            message = success ? R.string.editor_update_pet_successful
+                    : R.string.editor_update_pet_failed;
+        }
+        Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onPendingSavesChanged();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTrace;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads pet thumbnails for the catalog off the main thread, through a memory cache of decoded
+ * bitmaps bounded by size. The provider's thumbnail files are the disk level: a thumbnail missing
+ * from memory is decoded straight from the file the provider opens, without copying it.
+ * Thumbnails are keyed by pet ID and the time the photo was written, so a new photo never shows a
+ * stale thumbnail.
+ *
+ * Only {@link #getCached(long, long)} runs on the calling thread, and it never decodes.
+ * Everything else happens on background threads, and each load can be cancelled, e.g. when the
+ * row it was for is recycled.
+ */
+public final class PetThumbnailLoader {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    /** Share of the app's memory the decoded thumbnails may take */
+    private static final int MEMORY_CACHE_FRACTION = 16;
+
+    /** Number of thumbnails loaded at the same time */
+    private static final int LOAD_THREADS = 2;
+
+    private static PetThumbnailLoader sInstance;
+
+    /**
+     * Receives a loaded thumbnail on the main thread, or null if it couldn't be loaded.
+     */
+    public interface Callback {
+        void onThumbnailLoaded(Bitmap bitmap);
+    }
+
+    /**
+     * A load in progress. Once cancelled, its callback is never called.
+     */
+    public static final class Request {
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        public void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                // A load that hasn't started is skipped altogether
+                mFuture.cancel(false);
+            }
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(LOAD_THREADS);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Decoded thumbnails, sized in kilobytes */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /**
+     * Returns the process-wide loader, creating it on first use.
+     */
+    public static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetThumbnailLoader(Context context) {
+        mResolver = context.getContentResolver();
+        int maxKilobytes = (int) (Runtime.getRuntime().maxMemory() / 1024 / MEMORY_CACHE_FRACTION);
+        mMemoryCache = new LruCache<String, Bitmap>(maxKilobytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    private static String getKey(long id, long photoUpdatedAt) {
+        return id + "_" + photoUpdatedAt;
+    }
+
+    /**
+     * Returns the thumbnail of the given photo if it is in the memory cache, or null.
+     */
+    public Bitmap getCached(long id, long photoUpdatedAt) {
+        return mMemoryCache.get(getKey(id, photoUpdatedAt));
+    }
+
+    /**
+     * Load the thumbnail of the given photo in the background and hand it to the callback on the
+     * main thread, unless the returned request is cancelled first.
+     */
+    public Request load(final long id, long photoUpdatedAt, final Callback callback) {
+        final String key = getKey(id, photoUpdatedAt);
+        final Request request = new Request();
+        request.mFuture = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled()) {
+                    return;
+                }
+                final Bitmap bitmap = loadInBackground(id, key, request);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!request.isCancelled()) {
+                            callback.onThumbnailLoaded(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Find the thumbnail in the memory cache, or decode it from the provider's thumbnail file.
+     * Runs on a loading thread.
+     */
+    private Bitmap loadInBackground(long id, String key, Request request) {
+        long traceStart = PetTrace.begin("PetThumbnailLoader.load");
+        try {
+            // Another row may have loaded it since the request was made
+            Bitmap bitmap = mMemoryCache.get(key);
+            if (bitmap == null && !request.isCancelled()) {
+                bitmap = decodeFromProvider(id);
+                if (bitmap != null) {
+                    mMemoryCache.put(key, bitmap);
+                }
+            }
+            return bitmap;
+        } finally {
+            PetTrace.end("PetThumbnailLoader.load", traceStart, 1);
+        }
+    }
+
+    /**
+     * Decode the thumbnail file of the given pet, opened by the provider.
+     */
+    private Bitmap decodeFromProvider(long id) {
+        try {
+            ParcelFileDescriptor file = mResolver.openFileDescriptor(
+                    PetEntry.buildThumbnailUri(id), "r");
+            if (file == null) {
+                return null;
+            }
+            try {
+                return BitmapFactory.decodeFileDescriptor(file.getFileDescriptor());
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "No thumbnail for pet " + id, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Online backup and restore of the pets database, run through {@link PetProvider#call}.
+ *
+ * A backup copies the database into a new file through its own connection while the provider
+ * carries on reading and writing. Since the database runs in write-ahead logging mode, that
+ * connection only holds a read snapshot of shelter.db, and each table is copied by a single
+ * INSERT ... SELECT, so it reads one consistent version of the table however many writes land
+ * meanwhile. The backup is written to a temporary file and renamed into place once complete.
+ *
+ * A restore checks the backup, copies it next to the database and swaps it in with
+ * {@link PetDbHelper#swapIn(File)}.
+ *
+ * Backups and restores run one at a time. While a backup runs, the longest provider write is
+ * tracked, to show how long writers were held up by it at worst.
+ */
+final class PetBackup {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /** Name the source database is attached under on the backup connection */
+    private static final String SOURCE_SCHEMA = "src";
+
+    private final PetDbHelper mDbHelper;
+
+    /** Whether a backup is running, so writes are timed against it */
+    private volatile boolean mRunning;
+
+    /** Guards {@link #mMaxWriteMicros}; never held for long, as writers take it */
+    private final Object mStatsLock = new Object();
+
+    /** Longest provider write, in microseconds, since the running backup started */
+    private long mMaxWriteMicros;
+
+    PetBackup(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Record how long a provider write took, from the call until it was committed. While a
+     * backup is running the longest of these is how long writers were held up at worst.
+     */
+    void recordWrite(long micros) {
+        if (!mRunning) {
+            return;
+        }
+        synchronized (mStatsLock) {
+            mMaxWriteMicros = Math.max(mMaxWriteMicros, micros);
+        }
+    }
+
+    /**
+     * Back the database up into the given file, replacing it if it exists.
+     *
+     * @return the size of the backup, the rows copied, how long it took, the throughput and the
+     * longest write made while it ran, under the {@link PetContract} backup keys.
+     */
+    synchronized Bundle backup(File destination) {
+        File temporary = new File(destination.getPath() + ".tmp");
+        deleteDatabaseFiles(temporary);
+
+        long startMillis = SystemClock.elapsedRealtime();
+        long rows = 0;
+        synchronized (mStatsLock) {
+            mMaxWriteMicros = 0;
+        }
+        mRunning = true;
+        mDbHelper.lockShared();
+        try {
+            // Make sure the database exists, is up to date and is in write-ahead logging mode
+            String sourcePath = mDbHelper.getWritableDatabase().getPath();
+
+            SQLiteDatabase backup = SQLiteDatabase.openDatabase(temporary.getPath(), null,
+                    SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                backup.execSQL("ATTACH DATABASE ? AS " + SOURCE_SCHEMA,
+                        new Object[] { sourcePath });
+                rows = copyDatabase(backup);
+                backup.execSQL("DETACH DATABASE " + SOURCE_SCHEMA);
+            } finally {
+                backup.close();
+            }
+        } catch (SQLiteException e) {
+            deleteDatabaseFiles(temporary);
+            throw new IllegalStateException("Backup to " + destination + " failed", e);
+        } finally {
+            mDbHelper.unlockShared();
+            mRunning = false;
+        }
+
+        deleteDatabaseFiles(destination);
+        if (!temporary.renameTo(destination)) {
+            deleteDatabaseFiles(temporary);
+            throw new IllegalStateException("Could not move the backup to " + destination);
+        }
+
+        long durationMillis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+        long bytes = destination.length();
+        long maxWriteMicros;
+        synchronized (mStatsLock) {
+            maxWriteMicros = mMaxWriteMicros;
+        }
+        Bundle result = new Bundle();
+        result.putLong(PetContract.KEY_BACKUP_BYTES, bytes);
+        result.putLong(PetContract.KEY_BACKUP_ROWS, rows);
+        result.putLong(PetContract.KEY_BACKUP_DURATION_MS, durationMillis);
+        result.putLong(PetContract.KEY_BACKUP_KB_PER_SECOND, bytes * 1000 / 1024 / durationMillis);
+        result.putLong(PetContract.KEY_BACKUP_MAX_WRITE_STALL_US, maxWriteMicros);
+        Log.i(LOG_TAG, "Backed up " + rows + " rows, " + bytes + " bytes in " + durationMillis
+                + " ms; longest write meanwhile " + maxWriteMicros + " us");
+        return result;
+    }
+
+    /**
+     * Copy the schema and rows of the attached source database into the backup connection's
+     * main database. Tables are created and filled before their indexes and triggers, so the
+     * rows go in without index maintenance and without firing triggers.
+     *
+     * @return the number of rows copied.
+     */
+    private static long copyDatabase(SQLiteDatabase backup) {
+        List<String> tables = new ArrayList<>();
+        List<String> laterStatements = new ArrayList<>();
+        boolean hasSequence = false;
+        Cursor cursor = backup.rawQuery("SELECT type, name, sql FROM " + SOURCE_SCHEMA
+                + ".sqlite_master WHERE sql NOT NULL AND name != 'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                String type = cursor.getString(0);
+                String name = cursor.getString(1);
+                String sql = cursor.getString(2);
+                if ("sqlite_sequence".equals(name)) {
+                    hasSequence = true;
+                } else if ("table".equals(type)) {
+                    backup.execSQL(sql);
+                    tables.add(name);
+                } else {
+                    laterStatements.add(sql);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long rows = 0;
+        for (String table : tables) {
+            // One statement per table, so each table is read from a single snapshot
+            SQLiteStatement copy = backup.compileStatement("INSERT INTO main.\"" + table
+                    + "\" SELECT * FROM " + SOURCE_SCHEMA + ".\"" + table + "\"");
+            try {
+                rows += copy.executeUpdateDelete();
+            } finally {
+                copy.close();
+            }
+        }
+        if (hasSequence) {
+            // Copied after the tables, so the sequence is never behind the IDs already copied
+            backup.execSQL("DELETE FROM main.sqlite_sequence");
+            backup.execSQL("INSERT INTO main.sqlite_sequence SELECT * FROM "
+                    + SOURCE_SCHEMA + ".sqlite_sequence");
+        }
+        for (String sql : laterStatements) {
+            backup.execSQL(sql);
+        }
+        backup.setVersion((int) DatabaseUtils.longForQuery(backup,
+                "PRAGMA " + SOURCE_SCHEMA + ".user_version", null));
+        return rows;
+    }
+
+    /**
+     * Replace the database with the given backup. The backup is checked and copied next to the
+     * database first, so the provider is only held up for the swap itself.
+     */
+    synchronized void restore(File source) {
+        checkBackup(source);
+
+        File databaseFile = mDbHelper.getDatabaseFile();
+        File temporary = new File(databaseFile.getPath() + ".restore");
+        try {
+            copyFile(source, temporary);
+        } catch (IOException e) {
+            temporary.delete();
+            throw new IllegalStateException("Could not copy " + source, e);
+        }
+        if (!mDbHelper.swapIn(temporary)) {
+            temporary.delete();
+            throw new IllegalStateException("Could not restore " + source);
+        }
+    }
+
+    /**
+     * Check that the given file is an intact pets database this version of the app can open.
+     */
+    private static void checkBackup(File source) {
+        if (!source.isFile()) {
+            throw new IllegalArgumentException("No backup at " + source);
+        }
+        SQLiteDatabase backup;
+        try {
+            backup = SQLiteDatabase.openDatabase(source.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException("Not a database: " + source, e);
+        }
+        try {
+            int version = backup.getVersion();
+            if (version < 1 || version > PetDbHelper.getSchemaVersion()) {
+                throw new IllegalArgumentException("Unsupported backup version " + version);
+            }
+            String check = DatabaseUtils.stringForQuery(backup, "PRAGMA quick_check", null);
+            if (!"ok".equals(check)) {
+                throw new IllegalArgumentException("Corrupt backup " + source + ": " + check);
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException("Unreadable backup " + source, e);
+        } finally {
+            backup.close();
+        }
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+                // Make sure the copy is on disk before it replaces the database
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete a database file along with its journals.
+     */
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+}
@@ -1,9 +1,15 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class PetContract {
 
     // Prevent someone from accidentally instantiating the class
@@ -25,6 +31,519 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /*
+     Paths under a single pet for its photo, and the thumbnail made from it when it is written.
+     i.e. "content://com.example.android.pets/pets/3/photo"
+     */
+    public static final String PATH_PHOTO = "photo";
+    public static final String PATH_THUMBNAIL = "thumbnail";
+
+    /*
+     Path of the bulk-read stream of pets, i.e. "content://com.example.android.pets/pets/stream"
+     */
+    public static final String PATH_STREAM = "stream";
+
+    /*
+     Path of the pets of a shelter, i.e. "content://com.example.android.pets/pets/shelter/2", and
+     without an ID of the pets of every shelter at once
+     */
+    public static final String PATH_SHELTER = "shelter";
+
+    /**
+     * ID of the default shelter, whose pets are the ones at {@link PetEntry#CONTENT_URI}. Every
+     * other shelter keeps its pets in a database file of its own.
+     */
+    public static final long DEFAULT_SHELTER_ID = 0;
+
+    /**
+     * The MIME type of the pet stream: a {@link PetSnapshot}, read with
+     * {@link PetSnapshot#stream(ContentResolver, long, String, String[], PetSnapshot.RowHandler)}.
+     */
+    public static final String SNAPSHOT_MIME_TYPE =
+            "application/vnd." + CONTENT_AUTHORITY + ".snapshot";
+
+    /**
+     * Keys of the options Bundle passed when opening {@link PetEntry#STREAM_URI}, restricting
+     * the pets streamed like the selection of a query does. Both are optional. The stream reads
+     * the default shelter, unless given another in {@link #KEY_SHELTER_ID}.
+     */
+    public static final String KEY_SELECTION = "selection";
+    public static final String KEY_SELECTION_ARGS = "selection_args";
+
+    /**
+     * Provider method creating the shelter whose ID is the arg, with an empty database file of
+     * its own, unless it exists already. The shelter URIs and {@link #KEY_SHELTER_ID} only take
+     * shelters that exist; any other shelter is rejected with an IllegalArgumentException.
+     */
+    public static final String METHOD_CREATE_SHELTER = "create_shelter";
+
+    /**
+     * Provider method deleting the shelter whose ID is the arg, other than the default one, with
+     * its database file and all its pets for good, unless it doesn't exist. Not undoable.
+     */
+    public static final String METHOD_DELETE_SHELTER = "delete_shelter";
+
+    /**
+     * Optional query parameter on {@link PetEntry#CONTENT_URI} limiting the number of rows
+     * returned. i.e. "content://com.example.android.pets/pets?limit=100"
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Optional query parameter on {@link PetEntry#CONTENT_URI} skipping the given number of rows.
+     * Only honoured together with {@link #QUERY_PARAMETER_LIMIT}.
+     */
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+    /**
+     * Optional query parameter giving the time budget of a query in milliseconds. Queries that
+     * run longer are cancelled with a {@link PetQueryBudgetException}. Defaults to
+     * {@link #DEFAULT_QUERY_TIMEOUT_MS} and is capped at {@link #MAX_QUERY_TIMEOUT_MS}.
+     */
+    public static final String QUERY_PARAMETER_TIMEOUT_MS = "timeout_ms";
+
+    /**
+     * Optional query parameter giving the row budget of a query. Queries matching more rows fail
+     * with a {@link PetQueryBudgetException}. Defaults to {@link #DEFAULT_QUERY_MAX_ROWS} and is
+     * capped at {@link #MAX_QUERY_MAX_ROWS}.
+     */
+    public static final String QUERY_PARAMETER_MAX_ROWS = "max_rows";
+
+    /**
+     * Optional query parameters on {@link PetEntry#CONTENT_URI} restricting the pets returned
+     * to those added ({@link PetEntry#COLUMN_PET_CREATED_AT}) or last changed
+     * ({@link PetEntry#COLUMN_PET_UPDATED_AT}) in a time range, in milliseconds since the epoch.
+     * The "since" bounds are inclusive and the "before" bounds exclusive. They are combined with
+     * the selection and answered from the timestamp indexes.
+     * i.e. "content://com.example.android.pets/pets?created_since=1500000000000"
+     */
+    public static final String QUERY_PARAMETER_CREATED_SINCE = "created_since";
+    public static final String QUERY_PARAMETER_CREATED_BEFORE = "created_before";
+    public static final String QUERY_PARAMETER_UPDATED_SINCE = "updated_since";
+    public static final String QUERY_PARAMETER_UPDATED_BEFORE = "updated_before";
+
+    /**
+     * Optional query parameter on inserts into {@link PetEntry#CONTENT_URI}. When "true", a pet
+     * with the same {@link PetEntry#COLUMN_PET_FINGERPRINT fingerprint} as an existing one isn't
+     * added again; the insert returns the URI of the existing pet instead.
+     * i.e. "content://com.example.android.pets/pets?skip_duplicate=true"
+     */
+    public static final String QUERY_PARAMETER_SKIP_DUPLICATE = "skip_duplicate";
+
+    /** Time budget of a query that doesn't ask for one */
+    public static final long DEFAULT_QUERY_TIMEOUT_MS = 5000;
+
+    /** Largest time budget a query may ask for */
+    public static final long MAX_QUERY_TIMEOUT_MS = 30000;
+
+    /** Row budget of a query that doesn't ask for one */
+    public static final int DEFAULT_QUERY_MAX_ROWS = 10000;
+
+    /** Largest row budget a query may ask for */
+    public static final int MAX_QUERY_MAX_ROWS = 100000;
+
+    /**
+     * Provider method returning query statistics: the number of queries, how many went over
+     * their time or row budget, and the slowest query shapes.
+     * Use with {@link ContentResolver#call(Uri, String, String, android.os.Bundle)}.
+     */
+    public static final String METHOD_GET_QUERY_STATS = "get_query_stats";
+
+    /**
+     * Provider methods that change many pets at once, given by their IDs in {@link #KEY_IDS}.
+     * Each runs as a single transaction and sends a single change notification, and returns
+     * the number of pets affected in {@link #KEY_ROWS_AFFECTED}.
+     *
+     * {@link #METHOD_BATCH_SET_GENDER} takes the gender in {@link #KEY_GENDER};
+     * {@link #METHOD_BATCH_ADJUST_WEIGHT} takes the change in kg in {@link #KEY_WEIGHT_DELTA}
+     * (weights never go below 0).
+     */
+    public static final String METHOD_BATCH_DELETE = "batch_delete";
+    public static final String METHOD_BATCH_SET_GENDER = "batch_set_gender";
+    public static final String METHOD_BATCH_ADJUST_WEIGHT = "batch_adjust_weight";
+
+    /**
+     * Keys of the Bundles passed to and returned by the batch methods. The batch methods,
+     * {@link #METHOD_UNDO_DELETE} and {@link #METHOD_MERGE_DUPLICATES} act on the pets of the
+     * default shelter, unless given another in {@link #KEY_SHELTER_ID}.
+     */
+    public static final String KEY_IDS = "ids";
+    public static final String KEY_SHELTER_ID = "shelter_id";
+    public static final String KEY_GENDER = "gender";
+    public static final String KEY_WEIGHT_DELTA = "weight_delta";
+    public static final String KEY_ROWS_AFFECTED = "rows_affected";
+
+    /**
+     * Provider method bringing back the pets in {@link #KEY_IDS}, or instead the pets of a merge
+     * given by its {@link #KEY_DELETED_AT}, that were deleted within the undo window. Returns the
+     * number of pets brought back in {@link #KEY_ROWS_AFFECTED}.
+     */
+    public static final String METHOD_UNDO_DELETE = "undo_delete";
+
+    /**
+     * Provider method merging duplicate pets, i.e. pets with the same
+     * {@link PetEntry#COLUMN_PET_FINGERPRINT fingerprint}. Of each group of duplicates the pet
+     * added first that has a photo is kept, or the pet added first if none has one, and the
+     * others are deleted. Returns the number of pets deleted in {@link #KEY_ROWS_AFFECTED}.
+     *
+     * A call merges for at most {@link #MERGE_DUPLICATES_BUDGET_MS}. If it didn't get through
+     * every group, the result holds {@link #KEY_MERGE_RESUME}: call again with the result's
+     * {@link #KEY_MERGE_RESUME} and {@link #KEY_DELETED_AT} in the extras to go on. Every pet the
+     * merge deletes is marked with the deletion time in {@link #KEY_DELETED_AT}, which
+     * {@link #METHOD_UNDO_DELETE} takes to bring them all back. Pets deleted otherwise in the
+     * same millisecond would be brought back with them.
+     */
+    public static final String METHOD_MERGE_DUPLICATES = "merge_duplicates";
+
+    /** Longest a single {@link #METHOD_MERGE_DUPLICATES} call merges for, in milliseconds */
+    public static final long MERGE_DUPLICATES_BUDGET_MS = 2000;
+
+    /** Keys of the Bundles passed to and returned by {@link #METHOD_MERGE_DUPLICATES} */
+    public static final String KEY_DELETED_AT = "deleted_at";
+    public static final String KEY_MERGE_RESUME = "merge_resume";
+
+    /**
+     * Provider method setting the undo window, in milliseconds, to the arg. The window is kept
+     * across restarts, and capped at {@link #MAX_UNDO_WINDOW_MS}. Deleted pets take up space until
+     * it is over.
+     */
+    public static final String METHOD_SET_UNDO_WINDOW = "set_undo_window";
+
+    /** How long a deleted pet can be brought back, unless set otherwise */
+    public static final long DEFAULT_UNDO_WINDOW_MS = 30000;
+
+    /** Longest undo window that can be set */
+    public static final long MAX_UNDO_WINDOW_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Provider method backing the database up, while it stays in use, into the file whose
+     * absolute path is given as the arg. Returns the size of the backup, the number of rows
+     * copied, how long it took, the throughput and the longest write made meanwhile.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * Provider method replacing the database with the backup whose absolute path is given as
+     * the arg. Backups from older versions of the app are upgraded when next opened.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Provider method loading the {@link PetSnapshot} whose absolute path is given as the arg
+     * into the pets table, in a single transaction. The pets are added with new IDs, so pets
+     * already in the table are never touched. Returns the number of pets loaded in
+     * {@link #KEY_ROWS_AFFECTED}.
+     */
+    public static final String METHOD_LOAD_SNAPSHOT = "load_snapshot";
+
+    /** Keys of the Bundle returned by {@link #METHOD_BACKUP} */
+    public static final String KEY_BACKUP_BYTES = "backup_bytes";
+    public static final String KEY_BACKUP_ROWS = "backup_rows";
+    public static final String KEY_BACKUP_DURATION_MS = "backup_duration_ms";
+    public static final String KEY_BACKUP_KB_PER_SECOND = "backup_kb_per_second";
+    public static final String KEY_BACKUP_MAX_WRITE_STALL_US = "backup_max_write_stall_us";
+
+    /**
+     * Provider methods of the database maintenance, used by the maintenance job:
+     * {@link #METHOD_RUN_MAINTENANCE} runs the maintenance tasks until they are done or preempted
+     * by other provider traffic, returning whether all finished in
+     * {@link #KEY_MAINTENANCE_COMPLETE}; {@link #METHOD_CANCEL_MAINTENANCE} stops a running one.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+    public static final String METHOD_CANCEL_MAINTENANCE = "cancel_maintenance";
+
+    /**
+     * Provider method returning the history of the maintenance tasks: their names under
+     * {@link #KEY_MAINTENANCE_TASKS}, and under each name a Bundle with when the task last ran,
+     * how long it took and how it ended (one of the MAINTENANCE_OUTCOME values).
+     */
+    public static final String METHOD_GET_MAINTENANCE_STATS = "get_maintenance_stats";
+
+    /** Keys of the Bundles returned by the maintenance methods */
+    public static final String KEY_MAINTENANCE_COMPLETE = "maintenance_complete";
+    public static final String KEY_MAINTENANCE_TASKS = "maintenance_tasks";
+    public static final String KEY_MAINTENANCE_LAST_RUN = "last_run";
+    public static final String KEY_MAINTENANCE_DURATION_MS = "duration_ms";
+    public static final String KEY_MAINTENANCE_OUTCOME = "outcome";
+
+    /**
+     * Key of the IDs of the other shelters in the Bundle returned by
+     * {@link #METHOD_GET_MAINTENANCE_STATS}. Each shelter's database is maintained on its own,
+     * and its history is under its ID as a string, in a Bundle like the default shelter's.
+     */
+    public static final String KEY_MAINTENANCE_SHELTERS = "maintenance_shelters";
+
+    /** How a maintenance task last ended: done, stopped for its budget or preempted, or failed */
+    public static final String MAINTENANCE_OUTCOME_FINISHED = "finished";
+    public static final String MAINTENANCE_OUTCOME_STOPPED = "stopped";
+    public static final String MAINTENANCE_OUTCOME_FAILED = "failed";
+
+    /** Keys of the Bundle returned by {@link #METHOD_GET_QUERY_STATS} */
+    public static final String KEY_QUERY_COUNT = "query_count";
+    public static final String KEY_QUERY_TIMEOUTS = "query_timeouts";
+    public static final String KEY_QUERY_ROW_BUDGET_HITS = "query_row_budget_hits";
+    public static final String KEY_QUERY_SLOW_SHAPES = "query_slow_shapes";
+
+    /**
+     * Keys of the query shape statistics, also in the Bundle returned by
+     * {@link #METHOD_GET_QUERY_STATS}: how many queries had the same SQL text as a recent query
+     * and how many didn't, and the share of repeats.
+     */
+    public static final String KEY_QUERY_SHAPE_REPEATS = "query_shape_repeats";
+    public static final String KEY_QUERY_SHAPE_NEW = "query_shape_new";
+    public static final String KEY_QUERY_SHAPE_REPEAT_RATE = "query_shape_repeat_rate";
+
+    /**
+     * Keys of the query result cache statistics, also in the Bundle returned by
+     * {@link #METHOD_GET_QUERY_STATS}: how many queries were answered from the cache and how many
+     * weren't, the share of hits, the number of results cached and the memory they take by
+     * estimate, and the query time the hits saved.
+     */
+    public static final String KEY_RESULT_CACHE_HITS = "result_cache_hits";
+    public static final String KEY_RESULT_CACHE_MISSES = "result_cache_misses";
+    public static final String KEY_RESULT_CACHE_HIT_RATE = "result_cache_hit_rate";
+    public static final String KEY_RESULT_CACHE_ENTRIES = "result_cache_entries";
+    public static final String KEY_RESULT_CACHE_BYTES = "result_cache_bytes";
+    public static final String KEY_RESULT_CACHE_SAVED_US = "result_cache_saved_us";
+
+    /**
+     * An immutable query on {@link PetEntry#CONTENT_URI}, made with a {@link Builder} instead of
+     * a hand-written selection. The selection is always parameterized and its text depends only
+     * on which filters are set, never on their values or the order they were set in, so every
+     * query of the same shape reuses the provider's cached plan for it.
+     *
+     * i.e. new PetQuery.Builder().gender(PetEntry.GENDER_FEMALE).weightAtLeast(5)
+     *          .sortBy(PetEntry.COLUMN_PET_WEIGHT, true).limit(20).build()
+     */
+    public static final class PetQuery {
+
+        /** Columns a query can be sorted by */
+        private static final String[] SORT_COLUMNS = {
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_CREATED_AT,
+                PetEntry.COLUMN_PET_UPDATED_AT };
+
+        private final String mNameContains;
+        private final String mNameOrBreedContains;
+        private final String mBreed;
+        private final Integer mGender;
+        private final Integer mMinWeight;
+        private final Integer mMaxWeight;
+        private final String mSortColumn;
+        private final boolean mSortDescending;
+        private final int mLimit;
+        private final long mShelterId;
+
+        // The canonical selection, built once since the query never changes
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+
+        private PetQuery(Builder builder) {
+            mNameContains = builder.mNameContains;
+            mNameOrBreedContains = builder.mNameOrBreedContains;
+            mBreed = builder.mBreed;
+            mGender = builder.mGender;
+            mMinWeight = builder.mMinWeight;
+            mMaxWeight = builder.mMaxWeight;
+            mSortColumn = builder.mSortColumn;
+            mSortDescending = builder.mSortDescending;
+            mLimit = builder.mLimit;
+            mShelterId = builder.mShelterId;
+
+            // Always in the same order, whatever order the builder was called in
+            StringBuilder selection = new StringBuilder();
+            List<String> args = new ArrayList<>();
+            if (mNameContains != null) {
+                appendCondition(selection, PetEntry.COLUMN_PET_NAME + " LIKE ? ESCAPE '\\'");
+                args.add(toContainsPattern(mNameContains));
+            }
+            if (mNameOrBreedContains != null) {
+                appendCondition(selection, "(" + PetEntry.COLUMN_PET_NAME
+                        + " LIKE ? ESCAPE '\\' OR " + PetEntry.COLUMN_PET_BREED
+                        + " LIKE ? ESCAPE '\\')");
+                String pattern = toContainsPattern(mNameOrBreedContains);
+                args.add(pattern);
+                args.add(pattern);
+            }
+            if (mBreed != null) {
+                appendCondition(selection, PetEntry.COLUMN_PET_BREED + "=?");
+                args.add(mBreed);
+            }
+            // Numbers are bound as text too; the column affinity compares them as integers
+            if (mGender != null) {
+                appendCondition(selection, PetEntry.COLUMN_PET_GENDER + "=?");
+                args.add(String.valueOf(mGender));
+            }
+            if (mMinWeight != null) {
+                appendCondition(selection, PetEntry.COLUMN_PET_WEIGHT + ">=?");
+                args.add(String.valueOf(mMinWeight));
+            }
+            if (mMaxWeight != null) {
+                appendCondition(selection, PetEntry.COLUMN_PET_WEIGHT + "<=?");
+                args.add(String.valueOf(mMaxWeight));
+            }
+            mSelection = selection.length() == 0 ? null : selection.toString();
+            mSelectionArgs = args.isEmpty() ? null : args.toArray(new String[args.size()]);
+        }
+
+        private static void appendCondition(StringBuilder selection, String condition) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append(condition);
+        }
+
+        /**
+         * Returns a LIKE pattern matching values that contain the text, with the LIKE
+         * wildcards in it escaped so the text is matched literally.
+         */
+        private static String toContainsPattern(String text) {
+            return "%" + text.replace("\\", "\\\\").replace("%", "\\%")
+                    .replace("_", "\\_") + "%";
+        }
+
+        /**
+         * Returns the URI to query: {@link PetEntry#CONTENT_URI} or that of the shelter, with
+         * the limit if there is one.
+         */
+        public Uri getUri() {
+            Uri uri = mShelterId == DEFAULT_SHELTER_ID ? PetEntry.CONTENT_URI
+                    : PetEntry.buildShelterUri(mShelterId);
+            if (mLimit == 0) {
+                return uri;
+            }
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(mLimit)).build();
+        }
+
+        /** Returns the parameterized selection, or null if the query has no filter. */
+        public String getSelection() {
+            return mSelection;
+        }
+
+        /** Returns the arguments of the selection, or null if the query has no filter. */
+        public String[] getSelectionArgs() {
+            return mSelectionArgs == null ? null : mSelectionArgs.clone();
+        }
+
+        /** Returns the sort order, or null if the query isn't sorted. */
+        public String getSortOrder() {
+            if (mSortColumn == null) {
+                return null;
+            }
+            return mSortColumn + (mSortDescending ? " DESC" : " ASC");
+        }
+
+        /**
+         * Run the query, returning the given columns of the matching pets.
+         */
+        public Cursor query(ContentResolver resolver, String[] projection,
+                            CancellationSignal cancellationSignal) {
+            return resolver.query(getUri(), projection, mSelection, mSelectionArgs,
+                    getSortOrder(), cancellationSignal);
+        }
+
+        /**
+         * Makes {@link PetQuery} objects. Every filter is optional, and the query matches the
+         * pets meeting all of the filters set.
+         */
+        public static final class Builder {
+            private String mNameContains;
+            private String mNameOrBreedContains;
+            private String mBreed;
+            private Integer mGender;
+            private Integer mMinWeight;
+            private Integer mMaxWeight;
+            private String mSortColumn;
+            private boolean mSortDescending;
+            private int mLimit;
+            private long mShelterId = DEFAULT_SHELTER_ID;
+
+            /** Query the pets of the given shelter instead of the default one. */
+            public Builder shelter(long shelterId) {
+                if (shelterId < 0) {
+                    throw new IllegalArgumentException("Invalid shelter " + shelterId);
+                }
+                mShelterId = shelterId;
+                return this;
+            }
+
+            /** Only pets whose name contains the text, ignoring case. */
+            public Builder nameContains(String text) {
+                mNameContains = text;
+                return this;
+            }
+
+            /** Only pets whose name or breed contains the text, ignoring case. */
+            public Builder nameOrBreedContains(String text) {
+                mNameOrBreedContains = text;
+                return this;
+            }
+
+            /** Only pets of exactly the given breed. */
+            public Builder breed(String breed) {
+                mBreed = breed;
+                return this;
+            }
+
+            /** Only pets of the given gender, one of the PetEntry gender constants. */
+            public Builder gender(int gender) {
+                if (!PetEntry.isValidGender(gender)) {
+                    throw new IllegalArgumentException("Invalid gender " + gender);
+                }
+                mGender = gender;
+                return this;
+            }
+
+            /** Only pets weighing at least the given kg. */
+            public Builder weightAtLeast(int weight) {
+                mMinWeight = weight;
+                return this;
+            }
+
+            /** Only pets weighing at most the given kg. */
+            public Builder weightAtMost(int weight) {
+                mMaxWeight = weight;
+                return this;
+            }
+
+            /**
+             * Sort the pets by the given column: the ID, name, breed, gender, weight or one of
+             * the timestamps.
+             */
+            public Builder sortBy(String column, boolean descending) {
+                for (String sortColumn : SORT_COLUMNS) {
+                    if (sortColumn.equals(column)) {
+                        mSortColumn = sortColumn;
+                        mSortDescending = descending;
+                        return this;
+                    }
+                }
+                throw new IllegalArgumentException("Cannot sort by " + column);
+            }
+
+            /** Return at most the given number of pets. */
+            public Builder limit(int limit) {
+                if (limit <= 0) {
+                    throw new IllegalArgumentException("Invalid limit " + limit);
+                }
+                mLimit = limit;
+                return this;
+            }
+
+            public PetQuery build() {
+                if (mMinWeight != null && mMaxWeight != null && mMinWeight > mMaxWeight) {
+                    throw new IllegalArgumentException("Empty weight range " + mMinWeight
+                            + " to " + mMaxWeight);
+                }
+                return new PetQuery(this);
+            }
+        }
+    }
 
 
     // Inner class defining the constant values for the database table
@@ -33,6 +552,18 @@ public final class PetContract {
         // Content URI to access pet data in provider
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        // Content URI streaming the pets as a snapshot, for other processes reading many pets
+        public static final Uri STREAM_URI = Uri.withAppendedPath(CONTENT_URI, PATH_STREAM);
+
+        /**
+         * Content URI querying the pets of every shelter at once. The shelters are read in
+         * parallel and their rows returned one shelter after the other, with the query budgets
+         * applying per shelter. Read-only. The rows can't be sorted or paged across shelters,
+         * so a sort order or a {@link #QUERY_PARAMETER_LIMIT limit} or
+         * {@link #QUERY_PARAMETER_OFFSET offset} is rejected with an IllegalArgumentException.
+         */
+        public static final Uri SHELTERS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SHELTER);
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          * CURSOR_DIR_BASE_TYPE maps to constant "vnd.android.cursor.dir"
@@ -51,8 +582,9 @@ public final class PetContract {
         public final static String TABLE_NAME = "pets";
 
         /**
-         * 5 columns: _id, name, breed, gender, weight. String = datatype of constants, not
-         *          the individual attributes stored in columns.
+         * 10 columns: _id, name, breed, gender, weight, created_at, updated_at, photo_updated_at,
+         * fingerprint, deleted_at.
+         *          String = datatype of constants, not the individual attributes stored in columns.
           */
         // Unique ID number for pet (only used in DB table)
         public final static String _ID = BaseColumns._ID; // Type: INTEGER
@@ -61,6 +593,78 @@ public final class PetContract {
         public final static String COLUMN_PET_GENDER = "gender"; // Type: INTEGER
         public final static String COLUMN_PET_WEIGHT = "weight"; // Type: INTEGER
 
+        /**
+         * When the pet was added and last changed, in milliseconds since the epoch. Both are
+         * indexed and maintained by the provider; values passed in by callers are ignored.
+         */
+        public final static String COLUMN_PET_CREATED_AT = "created_at"; // Type: INTEGER
+        public final static String COLUMN_PET_UPDATED_AT = "updated_at"; // Type: INTEGER
+
+        /**
+         * When the pet's photo was last written, in milliseconds since the epoch, or 0 if it has
+         * none. Maintained by the provider; a change means the thumbnail must be reloaded.
+         */
+        public final static String COLUMN_PET_PHOTO_UPDATED_AT = "photo_updated_at"; // Type: INTEGER
+
+        /**
+         * Indexed fingerprint of the pet for finding duplicates: its name and breed ignoring
+         * case and surrounding spaces, its gender, and its weight to the nearest lower
+         * {@link #FINGERPRINT_WEIGHT_STEP_KG} kg. Pets with the same fingerprint count as
+         * duplicates. Maintained by the database; values passed in by callers are ignored.
+         */
+        public final static String COLUMN_PET_FINGERPRINT = "fingerprint"; // Type: TEXT
+
+        /** Weights within the same step of this many kg count as similar */
+        public static final int FINGERPRINT_WEIGHT_STEP_KG = 2;
+
+        /**
+         * When the pet was deleted, in milliseconds since the epoch, or 0 if it wasn't. Deleting
+         * a pet only sets this, and the provider leaves such pets out of every query and update,
+         * so they can be brought back with {@link PetContract#METHOD_UNDO_DELETE} for a while.
+         * They are removed for good by the database maintenance once that time is up.
+         */
+        public final static String COLUMN_PET_DELETED_AT = "deleted_at"; // Type: INTEGER
+
+        /**
+         * The shelter of the pet, only in the rows of {@link #SHELTERS_URI} queries whose
+         * projection asks for it.
+         */
+        public final static String COLUMN_SHELTER_ID = "shelter_id"; // Type: INTEGER
+
+        /**
+         * Returns the URI of the pets of the given shelter, which works like
+         * {@link #CONTENT_URI} does for the default shelter: append a pet ID for a single pet.
+         * Photos, snapshots and backups are only kept for the default shelter; streams take the
+         * shelter in {@link PetContract#KEY_SHELTER_ID}.
+         */
+        public static Uri buildShelterUri(long shelterId) {
+            return ContentUris.withAppendedId(SHELTERS_URI, shelterId);
+        }
+
+        /** The MIME type of a pet's photo, which is stored as it was written */
+        public static final String PHOTO_MIME_TYPE = "image/*";
+
+        /** The MIME type of a pet's thumbnail */
+        public static final String THUMBNAIL_MIME_TYPE = "image/jpeg";
+
+        /**
+         * Returns the URI of the given pet's photo. Open it for writing with
+         * {@link ContentResolver#openOutputStream(Uri)} to replace the photo; the thumbnail is
+         * made once the stream is closed. Delete it to remove the photo.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(id))
+                    .appendPath(PATH_PHOTO).build();
+        }
+
+        /**
+         * Returns the URI of the given pet's thumbnail, a small square JPEG. Read-only.
+         */
+        public static Uri buildThumbnailUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(id))
+                    .appendPath(PATH_THUMBNAIL).build();
+        }
+
         // Gender constants
         public final static int GENDER_UNKNOWN = 0;
         public final static int GENDER_MALE = 1;
@@ -5,19 +5,53 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * Database helper for Pets app. Manages database creation and version management.
+ *
+ * The database runs in write-ahead logging mode, so a reader on another connection (such as an
+ * online backup) sees a stable snapshot without ever blocking the writers.
+ *
+ * Every use of the database should happen between {@link #lockShared()} and
+ * {@link #unlockShared()}, so {@link #swapIn(File)} can replace the whole file safely.
  */
 public class PetDbHelper extends SQLiteOpenHelper {
     public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
     /**
-     * Name of the database file
+     * Name of the database file of the default shelter; see {@link PetShardManager} for the
+     * others
      */
-    private static final String DATABASE_NAME = "shelter.db";
+    static final String DATABASE_NAME = "shelter.db";
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
+
+    /**
+     * Number of prepared statements SQLite keeps per connection, the most it allows. The
+     * provider's queries have few distinct SQL texts, see {@link PetQueryShapeStats}, so a
+     * connection that ran a shape before can usually reuse its statement.
+     */
+    static final int SQL_CACHE_SIZE = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
+    /** Indexes for the time-range queries of live pets, see {@link #createLiveIndexes} */
+    static final String LIVE_CREATED_AT_INDEX =
+            PetEntry.TABLE_NAME + "_live_" + PetEntry.COLUMN_PET_CREATED_AT;
+    static final String LIVE_UPDATED_AT_INDEX =
+            PetEntry.TABLE_NAME + "_live_" + PetEntry.COLUMN_PET_UPDATED_AT;
+
+    /** The database file itself */
+    private final File mDatabaseFile;
+
+    /** Held shared while the database is in use, and exclusively while the file is swapped */
+    private final ReentrantReadWriteLock mSwapLock = new ReentrantReadWriteLock();
+
+    /** Bumped after every write, see {@link #getGeneration()} */
+    private final AtomicLong mGeneration = new AtomicLong();
 
     /**
      * Constructs a new instance of {@link PetDbHelper}.
@@ -25,7 +59,109 @@ public class PetDbHelper extends SQLiteOpenHelper {
      * Used null for cursor so it's set to default
      */
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link PetDbHelper} for the database file of the given name,
+     * such as the file of a shelter shard.
+     */
+    PetDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mDatabaseFile = context.getDatabasePath(name);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Returns the database file.
+     */
+    public File getDatabaseFile() {
+        return mDatabaseFile;
+    }
+
+    /**
+     * Returns the schema version this helper creates and upgrades to.
+     */
+    public static int getSchemaVersion() {
+        return DATABASE_VERSION;
+    }
+
+    /**
+     * Returns the generation of the data, which changes after every write to the database. A
+     * result read after getting the generation is still current as long as it hasn't changed.
+     */
+    public long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Note that the data has been written to, making everything read before stale. Called once
+     * a write is over, so nothing read during the write counts as current afterwards.
+     */
+    void bumpGeneration() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Mark the database as in use. Blocks while {@link #swapIn(File)} is replacing it.
+     */
+    public void lockShared() {
+        mSwapLock.readLock().lock();
+    }
+
+    public void unlockShared() {
+        mSwapLock.readLock().unlock();
+    }
+
+    /**
+     * Replace the database file with the given one, which must be on the same file system.
+     * Waits for every current use of the database to finish, closes it, and renames the new file
+     * over the old one, so other users only ever see one database or the other. The next call to
+     * {@link #getWritableDatabase()} opens the new file, upgrading it if it is an older version.
+     *
+     * @return true if the file was swapped in.
+     */
+    public boolean swapIn(File replacement) {
+        mSwapLock.writeLock().lock();
+        try {
+            close();
+            boolean swapped = replacement.renameTo(mDatabaseFile);
+            if (swapped) {
+                // Closing checkpointed the old write-ahead log; whatever is left of it belongs
+                // to the old file and must not be replayed into the new one
+                new File(mDatabaseFile.getPath() + "-wal").delete();
+                new File(mDatabaseFile.getPath() + "-shm").delete();
+                new File(mDatabaseFile.getPath() + "-journal").delete();
+            }
+            Log.v(LOG_TAG, "Swapped in " + replacement + ": " + swapped);
+            bumpGeneration();
+            return swapped;
+        } finally {
+            mSwapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the database file, with its journal and write-ahead log, once every current use of
+     * the database is over. For a shelter being deleted; the helper isn't used afterwards.
+     */
+    void delete() {
+        mSwapLock.writeLock().lock();
+        try {
+            close();
+            SQLiteDatabase.deleteDatabase(mDatabaseFile);
+            bumpGeneration();
+        } finally {
+            mSwapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This is called whenever the database is opened, before it is created or upgraded.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
     }
 
     /**
@@ -39,15 +175,111 @@ public class PetDbHelper extends SQLiteOpenHelper {
                 + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
                 + PetEntry.COLUMN_PET_BREED + " TEXT, "
                 + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
-                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_CREATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_PHOTO_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_FINGERPRINT + " TEXT, "
+                + PetEntry.COLUMN_PET_DELETED_AT + " INTEGER NOT NULL DEFAULT 0);";
 
         // Execute SQL statement
         db.execSQL(SQL_CREATE_PETS_TABLE);
         Log.v(LOG_TAG, SQL_CREATE_PETS_TABLE);
+        createFingerprint(db);
+        createLiveIndexes(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // DB still at version 1, so nothing to do here
+        if (oldVersion < 2) {
+            // Version 2 adds the timestamps. Pets that were already there get the time of the
+            // upgrade, which is the best we know.
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_CREATED_AT + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+            long now = System.currentTimeMillis();
+            db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                    + PetEntry.COLUMN_PET_CREATED_AT + "=" + now + ", "
+                    + PetEntry.COLUMN_PET_UPDATED_AT + "=" + now);
+        }
+        if (oldVersion < 3) {
+            // Version 3 adds photos; no pet has one yet
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_PHOTO_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 4) {
+            // Version 4 adds the fingerprints, worked out for the existing pets in one statement
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_FINGERPRINT + " TEXT");
+            db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                    + PetEntry.COLUMN_PET_FINGERPRINT + "=" + fingerprintOf(
+                    PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                    PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT));
+            createFingerprint(db);
+        }
+        if (oldVersion < 5) {
+            // Version 5 adds soft deletion; every pet there is live
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_DELETED_AT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 6) {
+            // Version 6 replaces the separate timestamp and deletion time indexes, which
+            // versions 2 and 5 created, with indexes on both
+            db.execSQL("DROP INDEX IF EXISTS " + PetEntry.TABLE_NAME + "_"
+                    + PetEntry.COLUMN_PET_CREATED_AT);
+            db.execSQL("DROP INDEX IF EXISTS " + PetEntry.TABLE_NAME + "_"
+                    + PetEntry.COLUMN_PET_UPDATED_AT);
+            db.execSQL("DROP INDEX IF EXISTS " + PetEntry.TABLE_NAME + "_"
+                    + PetEntry.COLUMN_PET_DELETED_AT);
+            createLiveIndexes(db);
+        }
+    }
+
+    /**
+     * Returns the SQL expression of the fingerprint of a pet with the given name, breed, gender
+     * and weight expressions, e.g. columns or "?" arguments. The name and breed are trimmed and
+     * lower-cased, a missing breed counts as an empty one, and the weight is reduced to its
+     * {@link PetEntry#FINGERPRINT_WEIGHT_STEP_KG} step. The parts are separated by the unit
+     * separator control character, which no name or breed contains.
+     */
+    static String fingerprintOf(String name, String breed, String gender, String weight) {
+        return "lower(trim(" + name + "))||X'1F'||ifnull(lower(trim(" + breed + ")),'')||X'1F'||("
+                + gender + ")||X'1F'||((" + weight + ")/" + PetEntry.FINGERPRINT_WEIGHT_STEP_KG
+                + ")";
+    }
+
+    /**
+     * Index the fingerprints, and keep them up to date with triggers, so every way of adding or
+     * changing pets fills them in, including batch updates and snapshot loads.
+     */
+    private static void createFingerprint(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + PetEntry.TABLE_NAME + "_" + PetEntry.COLUMN_PET_FINGERPRINT
+                + " ON " + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_FINGERPRINT + ")");
+        String update = " BEGIN UPDATE " + PetEntry.TABLE_NAME + " SET "
+                + PetEntry.COLUMN_PET_FINGERPRINT + "=" + fingerprintOf(
+                "NEW." + PetEntry.COLUMN_PET_NAME, "NEW." + PetEntry.COLUMN_PET_BREED,
+                "NEW." + PetEntry.COLUMN_PET_GENDER, "NEW." + PetEntry.COLUMN_PET_WEIGHT)
+                + " WHERE " + PetEntry._ID + "=NEW." + PetEntry._ID + "; END";
+        db.execSQL("CREATE TRIGGER " + PetEntry.TABLE_NAME + "_fingerprint_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + update);
+        db.execSQL("CREATE TRIGGER " + PetEntry.TABLE_NAME + "_fingerprint_update AFTER UPDATE OF "
+                + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + " ON "
+                + PetEntry.TABLE_NAME + update);
+    }
+
+    /**
+     * Index the timestamps behind the deletion time, so a time-range query, which only ever
+     * asks for live pets (deletion time 0), reads just the live pets in the range. With an
+     * index on each column alone, SQLite would rather look up "deleted_at=0" than the range,
+     * and then read nearly every pet. The deletion time coming first also lets the reaper find
+     * the expired pets, and an undo the recently deleted ones, without a scan.
+     */
+    private static void createLiveIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + LIVE_CREATED_AT_INDEX + " ON " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_DELETED_AT + ", " + PetEntry.COLUMN_PET_CREATED_AT + ")");
+        db.execSQL("CREATE INDEX " + LIVE_UPDATED_AT_INDEX + " ON " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_DELETED_AT + ", " + PetEntry.COLUMN_PET_UPDATED_AT + ")");
     }
 }
\ No newline at end of file
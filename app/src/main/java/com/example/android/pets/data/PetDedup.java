@@ -0,0 +1,162 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges duplicate pets, i.e. live pets with the same
+ * {@link PetEntry#COLUMN_PET_FINGERPRINT fingerprint}, for
+ * {@link PetContract#METHOD_MERGE_DUPLICATES}. Only ever runs when a caller asks for it, as two
+ * pets with the same fingerprint may well be two different animals. Of each group of duplicates
+ * the pet added first that has a photo is kept, or the pet added first if none has one, and the
+ * others are deleted the way every other delete does it: marked deleted, so they can be brought
+ * back within the undo window and are only removed for good, photos and all, by
+ * {@link PetReaper}. Every pet a merge deletes is marked with the same deletion time, which is
+ * all it takes to bring them all back.
+ *
+ * The duplicate groups are found by walking the fingerprint index in order, {@link #BATCH_GROUPS}
+ * groups at a time, and each group is deleted by one statement however many duplicates it has,
+ * so memory stays bounded however large the table is. Each batch is one transaction. A run stops
+ * between batches once its time budget is spent, and the next run goes on after the last group
+ * merged.
+ */
+final class PetDedup {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetDedup.class.getSimpleName();
+
+    /** Number of duplicate groups merged in one transaction */
+    private static final int BATCH_GROUPS = 200;
+
+    private final SQLiteDatabase mDatabase;
+
+    /** Deletion time every pet deleted by the merge is marked with */
+    private final long mDeletedAt;
+
+    /** Fingerprint of the last group merged; the walk goes on after it */
+    private String mLastFingerprint;
+
+    /** Number of pets deleted by this run */
+    private int mDeleted;
+
+    /**
+     * Constructs a run of a merge on the given database, marking the pets it deletes with the
+     * given deletion time, and merging the groups after the given fingerprint ("" for all).
+     */
+    PetDedup(SQLiteDatabase database, long deletedAt, String afterFingerprint) {
+        mDatabase = database;
+        mDeletedAt = deletedAt;
+        mLastFingerprint = afterFingerprint;
+    }
+
+    /**
+     * Merge groups of duplicates until every group is merged or the given time is up.
+     *
+     * @return true if every group is merged, false if the time ran out first.
+     */
+    boolean run(long budgetMillis) {
+        long deadline = SystemClock.elapsedRealtime() + budgetMillis;
+        int merged = 0;
+        try {
+            while (true) {
+                int groups = mergeBatch();
+                merged += groups;
+                if (groups < BATCH_GROUPS) {
+                    // Reached the end of the index
+                    return true;
+                }
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    return false;
+                }
+            }
+        } finally {
+            if (merged != 0) {
+                Log.i(LOG_TAG, "Merged " + merged + " groups of duplicate pets, deleting "
+                        + mDeleted);
+            }
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the last group merged, which the next run goes on after.
+     */
+    String getLastFingerprint() {
+        return mLastFingerprint;
+    }
+
+    /**
+     * Returns the number of pets this run deleted.
+     */
+    int getDeletedCount() {
+        return mDeleted;
+    }
+
+    /**
+     * Merge the next batch of duplicate groups in one transaction.
+     *
+     * @return the number of groups merged.
+     */
+    private int mergeBatch() {
+        // Grouping by the indexed column walks the index in order, without sorting. Deleted
+        // pets have no fingerprint, so they never count.
+        List<String> fingerprints = new ArrayList<>();
+        Cursor groups = mDatabase.rawQuery("SELECT " + PetEntry.COLUMN_PET_FINGERPRINT
+                + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_FINGERPRINT
+                + ">? AND " + PetProvider.LIVE_SELECTION + " GROUP BY "
+                + PetEntry.COLUMN_PET_FINGERPRINT + " HAVING COUNT(*)>1 ORDER BY "
+                + PetEntry.COLUMN_PET_FINGERPRINT + " LIMIT " + BATCH_GROUPS,
+                new String[] { mLastFingerprint });
+        try {
+            while (groups.moveToNext()) {
+                fingerprints.add(groups.getString(0));
+            }
+        } finally {
+            groups.close();
+        }
+        if (fingerprints.isEmpty()) {
+            return 0;
+        }
+
+        // The pets without a photo sort last, then the pets added later
+        SQLiteStatement keep = mDatabase.compileStatement("SELECT " + PetEntry._ID + " FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_FINGERPRINT + "=? AND "
+                + PetProvider.LIVE_SELECTION + " ORDER BY ("
+                + PetEntry.COLUMN_PET_PHOTO_UPDATED_AT + "=0), " + PetEntry._ID + " LIMIT 1");
+        // Marks them deleted like PetProvider.deletePets() does
+        SQLiteStatement delete = mDatabase.compileStatement("UPDATE " + PetEntry.TABLE_NAME
+                + " SET " + PetEntry.COLUMN_PET_DELETED_AT + "=?, "
+                + PetEntry.COLUMN_PET_FINGERPRINT + "=NULL WHERE "
+                + PetEntry.COLUMN_PET_FINGERPRINT + "=? AND " + PetEntry._ID + "!=? AND "
+                + PetProvider.LIVE_SELECTION);
+        int deleted = 0;
+        mDatabase.beginTransaction();
+        try {
+            for (String fingerprint : fingerprints) {
+                keep.bindString(1, fingerprint);
+                long keptId = keep.simpleQueryForLong();
+                delete.bindLong(1, mDeletedAt);
+                delete.bindString(2, fingerprint);
+                delete.bindLong(3, keptId);
+                deleted += delete.executeUpdateDelete();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            keep.close();
+            delete.close();
+        }
+
+        // Only once the transaction went through
+        mDeleted += deleted;
+        mLastFingerprint = fingerprints.get(fingerprints.size() - 1);
+        return fingerprints.size();
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs maintenance of the pets database, such as refreshing the query planner's statistics,
+ * rebuilding indexes and checkpointing the write-ahead log, while nobody is using it.
+ *
+ * {@link PetMaintenanceService} starts a run through {@link PetProvider#call} when the device is
+ * idle and charging. The registered tasks run one after the other, the one that ran longest ago
+ * first, each within its own time budget. As soon as the provider sees any other traffic, the
+ * run is preempted: the current task is asked to stop at its next step and the remaining tasks
+ * wait for the next run. When each task last ran, how long it took and how it ended is kept in
+ * shared preferences and handed out through {@link PetProvider#call}.
+ */
+final class PetMaintenance {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetMaintenance.class.getSimpleName();
+
+    /** Name of the shared preferences holding the task history of the default shelter */
+    static final String PREFERENCES_NAME = "pet_maintenance";
+
+    /** Job ID of {@link PetMaintenanceService} */
+    private static final int JOB_ID = 1;
+
+    /** How often the maintenance job asks to run, given the device is idle and charging */
+    private static final long JOB_PERIOD_MS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * A unit of maintenance. Long tasks should check {@link Budget#shouldStop()} between steps,
+     * and pick up where they left off on the next run if they were stopped. A step already
+     * running, such as a single SQL statement, always runs to its end, so the budget only
+     * bounds a task as closely as its steps are short.
+     */
+    interface Task {
+        /** Name the task's history is kept under */
+        String getName();
+
+        /** Longest the task may run for in one go */
+        long getBudgetMillis();
+
+        /**
+         * Run the task on the given database, which may be written to.
+         *
+         * @return true if the task finished, false if it stopped early for its budget.
+         */
+        boolean run(SQLiteDatabase database, Budget budget);
+    }
+
+    /**
+     * The time left to a running task, and whether it has been preempted.
+     */
+    final class Budget {
+        private final long mDeadline;
+
+        private Budget(long millis) {
+            mDeadline = SystemClock.elapsedRealtime() + millis;
+        }
+
+        /** Returns whether the task should stop now and leave the rest for the next run. */
+        boolean shouldStop() {
+            return isInterrupted() || SystemClock.elapsedRealtime() > mDeadline;
+        }
+
+        /** Returns whether the run was cancelled or preempted by provider traffic. */
+        boolean isInterrupted() {
+            return mCancelled || mLastTrafficNanos > mRunStartNanos;
+        }
+    }
+
+    private final PetDbHelper mDbHelper;
+    private final SharedPreferences mPreferences;
+    private final List<Task> mTasks = new ArrayList<>();
+
+    /** When the provider last served a caller other than the maintenance job */
+    private volatile long mLastTrafficNanos;
+
+    /** When the current run started */
+    private volatile long mRunStartNanos = Long.MAX_VALUE;
+
+    /** Set to stop the current run, e.g. when the device stops being idle */
+    private volatile boolean mCancelled;
+
+    /**
+     * Constructs the maintenance of the given database, keeping its task history in the shared
+     * preferences of the given name.
+     */
+    PetMaintenance(Context context, PetDbHelper dbHelper, String preferencesName) {
+        mDbHelper = dbHelper;
+        mPreferences = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
+        register(new AnalyzeTask());
+        register(new ReindexTask());
+        register(new CheckpointTask());
+    }
+
+    /**
+     * Schedule {@link PetMaintenanceService} to run when the device is idle and charging, unless
+     * it already is. JobScheduler needs Lollipop, so older devices get no maintenance.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        // Scheduling again would restart the period, so leave a pending job alone
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PetMaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(JOB_PERIOD_MS)
+                .build());
+    }
+
+    /**
+     * Add a task to every run. Only called while the provider is created.
+     */
+    synchronized void register(Task task) {
+        mTasks.add(task);
+    }
+
+    /**
+     * Note that the provider is serving a caller, which preempts a running maintenance run.
+     * Called on every provider entry point, so it does no more than a volatile write.
+     */
+    void onTraffic() {
+        mLastTrafficNanos = System.nanoTime();
+    }
+
+    /**
+     * Stop the current run, if any, at the next step of its current task.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Run the tasks, least recently run first, until all have run or the run is preempted.
+     *
+     * @return whether every task finished, in {@link PetContract#KEY_MAINTENANCE_COMPLETE}.
+     */
+    synchronized Bundle run() {
+        mCancelled = false;
+        mRunStartNanos = System.nanoTime();
+        List<Task> tasks = new ArrayList<>(mTasks);
+        // So a run that keeps being preempted doesn't starve the tasks at the back
+        Collections.sort(tasks, new Comparator<Task>() {
+            @Override
+            public int compare(Task a, Task b) {
+                long difference = getLastRun(a) - getLastRun(b);
+                return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+            }
+        });
+
+        boolean complete = true;
+        try {
+            for (Task task : tasks) {
+                Budget budget = new Budget(task.getBudgetMillis());
+                if (budget.isInterrupted()) {
+                    complete = false;
+                    break;
+                }
+                String outcome = runTask(task, budget);
+                if (!PetContract.MAINTENANCE_OUTCOME_FINISHED.equals(outcome)) {
+                    complete = false;
+                }
+                if (budget.isInterrupted()) {
+                    break;
+                }
+            }
+        } finally {
+            mRunStartNanos = Long.MAX_VALUE;
+        }
+        Log.i(LOG_TAG, "Maintenance run " + (complete ? "complete" : "incomplete"));
+
+        Bundle result = new Bundle();
+        result.putBoolean(PetContract.KEY_MAINTENANCE_COMPLETE, complete);
+        return result;
+    }
+
+    /**
+     * Run one task and record when it ran, how long it took and how it ended.
+     */
+    private String runTask(Task task, Budget budget) {
+        long traceStart = PetTrace.begin("PetMaintenance." + task.getName());
+        long startMillis = SystemClock.elapsedRealtime();
+        String outcome;
+        mDbHelper.lockShared();
+        try {
+            outcome = task.run(mDbHelper.getWritableDatabase(), budget)
+                    ? PetContract.MAINTENANCE_OUTCOME_FINISHED
+                    : PetContract.MAINTENANCE_OUTCOME_STOPPED;
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Maintenance task " + task.getName() + " failed", e);
+            outcome = PetContract.MAINTENANCE_OUTCOME_FAILED;
+        } finally {
+            // The task may have removed or merged pets
+            mDbHelper.bumpGeneration();
+            mDbHelper.unlockShared();
+            PetTrace.end("PetMaintenance." + task.getName(), traceStart, 1);
+        }
+        long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+        mPreferences.edit()
+                .putLong(task.getName() + "." + PetContract.KEY_MAINTENANCE_LAST_RUN,
+                        System.currentTimeMillis())
+                .putLong(task.getName() + "." + PetContract.KEY_MAINTENANCE_DURATION_MS,
+                        durationMillis)
+                .putString(task.getName() + "." + PetContract.KEY_MAINTENANCE_OUTCOME, outcome)
+                .apply();
+        Log.i(LOG_TAG, "Maintenance task " + task.getName() + " " + outcome + " in "
+                + durationMillis + " ms");
+        return outcome;
+    }
+
+    private long getLastRun(Task task) {
+        return mPreferences.getLong(task.getName() + "."
+                + PetContract.KEY_MAINTENANCE_LAST_RUN, 0);
+    }
+
+    /**
+     * Returns the history of every task, in the form {@link PetProvider#call} hands it out: the
+     * task names under {@link PetContract#KEY_MAINTENANCE_TASKS}, and a Bundle per task, under
+     * its name, with when it last ran, how long it took and how it ended.
+     */
+    synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        String[] names = new String[mTasks.size()];
+        for (int i = 0; i < names.length; i++) {
+            String name = mTasks.get(i).getName();
+            names[i] = name;
+            Bundle task = new Bundle();
+            task.putLong(PetContract.KEY_MAINTENANCE_LAST_RUN, mPreferences.getLong(
+                    name + "." + PetContract.KEY_MAINTENANCE_LAST_RUN, 0));
+            task.putLong(PetContract.KEY_MAINTENANCE_DURATION_MS, mPreferences.getLong(
+                    name + "." + PetContract.KEY_MAINTENANCE_DURATION_MS, 0));
+            task.putString(PetContract.KEY_MAINTENANCE_OUTCOME, mPreferences.getString(
+                    name + "." + PetContract.KEY_MAINTENANCE_OUTCOME, null));
+            bundle.putBundle(name, task);
+        }
+        bundle.putStringArray(PetContract.KEY_MAINTENANCE_TASKS, names);
+        return bundle;
+    }
+
+    /**
+     * Returns the names of the indexes of the pets table.
+     */
+    private static List<String> getIndexes(SQLiteDatabase database) {
+        List<String> indexes = new ArrayList<>();
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='index'"
+                + " AND tbl_name=? AND sql NOT NULL", new String[] { PetEntry.TABLE_NAME });
+        try {
+            while (cursor.moveToNext()) {
+                indexes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return indexes;
+    }
+
+    /**
+     * Refreshes the statistics the query planner chooses indexes by, one index at a time so the
+     * task can stop between them. Where SQLite supports it (3.32 and up), each index is only
+     * sampled up to {@link #ANALYSIS_LIMIT} rows, so analysing one takes about as long however
+     * many pets there are; older versions ignore the limit and read each whole index.
+     */
+    private static final class AnalyzeTask implements Task {
+        /** Rows of an index sampled for its statistics */
+        private static final int ANALYSIS_LIMIT = 1000;
+
+        @Override
+        public String getName() {
+            return "analyze";
+        }
+
+        @Override
+        public long getBudgetMillis() {
+            return 10000;
+        }
+
+        @Override
+        public boolean run(SQLiteDatabase database, Budget budget) {
+            // The pragma returns a row, so it has to go through a query
+            Cursor cursor = database.rawQuery("PRAGMA analysis_limit=" + ANALYSIS_LIMIT, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+            for (String index : getIndexes(database)) {
+                if (budget.shouldStop()) {
+                    return false;
+                }
+                database.execSQL("ANALYZE \"" + index + "\"");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Rebuilds the indexes of the pets table one at a time, so fragmented indexes get compact
+     * again. The budget is checked between indexes, but a rebuild can't be stopped once
+     * started, so a run may go over its budget by the time it takes to rebuild one index, which
+     * grows with the number of pets. A stopped run rebuilds them all on its next run.
+     */
+    private static final class ReindexTask implements Task {
+        @Override
+        public String getName() {
+            return "reindex";
+        }
+
+        @Override
+        public long getBudgetMillis() {
+            return 20000;
+        }
+
+        @Override
+        public boolean run(SQLiteDatabase database, Budget budget) {
+            for (String index : getIndexes(database)) {
+                if (budget.shouldStop()) {
+                    return false;
+                }
+                database.execSQL("REINDEX \"" + index + "\"");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the write-ahead log back into the database while no reader needs the old pages,
+     * so the log doesn't grow and reads don't have to look through it.
+     */
+    private static final class CheckpointTask implements Task {
+        @Override
+        public String getName() {
+            return "checkpoint";
+        }
+
+        @Override
+        public long getBudgetMillis() {
+            return 5000;
+        }
+
+        @Override
+        public boolean run(SQLiteDatabase database, Budget budget) {
+            // The pragma returns a row, so it has to go through a query
+            Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Job scheduled by {@link PetMaintenance#schedule} for when the device is idle and charging.
+ * It runs the maintenance through {@link PetProvider#call}, so the maintenance shares the
+ * provider's database, and asks to be rescheduled if the run was preempted or stopped.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PetMaintenanceService extends JobService {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetMaintenanceService.class.getSimpleName();
+
+    private MaintenanceTask mTask;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mTask = new MaintenanceTask(this, params);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        // The work goes on in the background
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The device is no longer idle or charging; the run stops at its next step
+        if (mTask != null) {
+            mTask.mStopped = true;
+        }
+        getContentResolver().call(PetEntry.CONTENT_URI, PetContract.METHOD_CANCEL_MAINTENANCE,
+                null, null);
+        return true;
+    }
+
+    /**
+     * Runs the maintenance off the main thread and finishes the job with its outcome.
+     */
+    private static class MaintenanceTask extends AsyncTask<Void, Void, Boolean> {
+        private final JobService mService;
+        private final JobParameters mParams;
+        private volatile boolean mStopped;
+
+        MaintenanceTask(JobService service, JobParameters params) {
+            mService = service;
+            mParams = params;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... voids) {
+            try {
+                Bundle result = mService.getContentResolver().call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_RUN_MAINTENANCE, null, null);
+                return result != null
+                        && result.getBoolean(PetContract.KEY_MAINTENANCE_COMPLETE);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Maintenance failed", e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean complete) {
+            // A stopped job has been finished by the system already
+            if (!mStopped) {
+                mService.jobFinished(mParams, !complete);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Files behind the pet photo URIs of {@link PetProvider}: each pet's photo as it was written,
+ * and a small square JPEG thumbnail made from it once, when the photo is stored, so the catalog
+ * never has to scale full-size photos.
+ */
+final class PetPhotoStore {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetPhotoStore.class.getSimpleName();
+
+    /** Width and height of a thumbnail, in pixels */
+    static final int THUMBNAIL_SIZE = 192;
+
+    /** JPEG quality of a thumbnail */
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    /** Photos larger than this are rejected, so a runaway writer can't fill the disk */
+    private static final long MAX_PHOTO_BYTES = 20 * 1024 * 1024;
+
+    private final File mDirectory;
+
+    PetPhotoStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), "photos");
+    }
+
+    File getPhotoFile(long id) {
+        return new File(mDirectory, id + ".photo");
+    }
+
+    File getThumbnailFile(long id) {
+        return new File(mDirectory, id + ".thumbnail.jpg");
+    }
+
+    /**
+     * Store the photo read from the given stream for the given pet and make its thumbnail.
+     * Nothing is replaced unless both succeed.
+     *
+     * @return true if the photo was stored.
+     */
+    boolean store(long id, InputStream in) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Cannot create " + mDirectory);
+            return false;
+        }
+        File photo = null;
+        File thumbnail = null;
+        try {
+            photo = File.createTempFile(id + ".", ".tmp", mDirectory);
+            if (!copy(in, photo)) {
+                Log.e(LOG_TAG, "Photo for pet " + id + " is larger than " + MAX_PHOTO_BYTES);
+                return false;
+            }
+            thumbnail = File.createTempFile(id + ".", ".tmp", mDirectory);
+            if (!makeThumbnail(photo, thumbnail)) {
+                Log.e(LOG_TAG, "Photo for pet " + id + " is not an image");
+                return false;
+            }
+            if (!photo.renameTo(getPhotoFile(id)) || !thumbnail.renameTo(getThumbnailFile(id))) {
+                Log.e(LOG_TAG, "Cannot store photo for pet " + id);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store photo for pet " + id, e);
+            return false;
+        } finally {
+            // Leftovers of a failed store; no-ops once renamed
+            if (photo != null) {
+                photo.delete();
+            }
+            if (thumbnail != null) {
+                thumbnail.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the photo and thumbnail of the given pet, if it has them.
+     */
+    void delete(long id) {
+        getPhotoFile(id).delete();
+        getThumbnailFile(id).delete();
+    }
+
+    /**
+     * Copy the stream into the file, giving up past {@link #MAX_PHOTO_BYTES}.
+     */
+    private static boolean copy(InputStream in, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > MAX_PHOTO_BYTES) {
+                    return false;
+                }
+                out.write(buffer, 0, read);
+            }
+            out.getFD().sync();
+            return true;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a {@link #THUMBNAIL_SIZE} square thumbnail of the photo, cropped to its centre.
+     * The photo is decoded already scaled down by the largest power of two that keeps it at
+     * least the thumbnail's size, so even a large photo takes little memory.
+     */
+    private static boolean makeThumbnail(File photo, File thumbnail) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(photo.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeFile(photo.getPath(), options);
+        if (decoded == null) {
+            return false;
+        }
+
+        int side = Math.min(decoded.getWidth(), decoded.getHeight());
+        Bitmap cropped = Bitmap.createBitmap(decoded, (decoded.getWidth() - side) / 2,
+                (decoded.getHeight() - side) / 2, side, side);
+        Bitmap scaled = Bitmap.createScaledBitmap(cropped, THUMBNAIL_SIZE, THUMBNAIL_SIZE, true);
+        FileOutputStream out = new FileOutputStream(thumbnail);
+        try {
+            return scaled.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        } finally {
+            out.close();
+            // createBitmap and createScaledBitmap may hand back the bitmap they were given
+            if (scaled != cropped) {
+                scaled.recycle();
+            }
+            if (cropped != decoded) {
+                cropped.recycle();
+            }
+            decoded.recycle();
+        }
+    }
+}
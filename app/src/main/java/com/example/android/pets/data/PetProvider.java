@@ -1,12 +1,23 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
@@ -14,6 +25,29 @@ import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 
 /**
@@ -30,6 +64,18 @@ public class PetProvider extends ContentProvider {
     // URI Matcher code for the content URI for a single pet in the pets table
     private static final int PET_ID = 101;
 
+    // URI Matcher codes for the content URIs of a single pet's photo and thumbnail
+    private static final int PET_PHOTO = 102;
+    private static final int PET_THUMBNAIL = 103;
+
+    // URI Matcher code for the bulk-read stream of the pets table
+    private static final int PETS_STREAM = 104;
+
+    // URI Matcher codes for the pets of a shelter, a single pet of a shelter, and every shelter
+    private static final int SHELTER_PETS = 105;
+    private static final int SHELTER_PET_ID = 106;
+    private static final int ALL_SHELTERS = 107;
+
     /**
      * URIMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -47,12 +93,98 @@ public class PetProvider extends ContentProvider {
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         // Uri Matcher where we act on a single pet in the pets table
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        // Uri Matchers for the photo and thumbnail files of a single pet
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PET_PHOTO);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_THUMBNAIL, PET_THUMBNAIL);
+        // Uri Matcher for streaming the pets table
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STREAM, PETS_STREAM);
+        // Uri Matchers for the pets of the shelters, i.e. "pets/shelter/2" and "pets/shelter/2/3"
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SHELTER + "/#", SHELTER_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SHELTER + "/#/#", SHELTER_PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SHELTER, ALL_SHELTERS);
+    }
+
+    /** Selects the pets that haven't been deleted, which are the only ones callers ever see */
+    static final String LIVE_SELECTION = PetEntry.COLUMN_PET_DELETED_AT + "=0";
+
+    /** Maximum number of IDs bound to a single statement of a batch operation */
+    private static final int BATCH_CHUNK_SIZE = 500;
+
+    /**
+     * A write to the database, see {@link #runWrite}.
+     */
+    private interface DatabaseWrite<T> {
+        T run();
     }
 
+    /** Stores photos written through {@link #openFile}, one at a time */
+    private static final Executor sPhotoExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Writes the pet streams opened through {@link #openTypedAssetFile}. Each stream holds a
+     * thread while its reader is behind, so only a few run at once and the rest wait their turn.
+     */
+    private static final Executor sStreamExecutor = Executors.newFixedThreadPool(2);
+
+    /** Queries the shelters of a cross-shelter query in parallel */
+    private static final ExecutorService sShelterExecutor = Executors.newFixedThreadPool(4);
+
+    /** Cancels queries that run past their time budget */
+    private static final ScheduledExecutorService sDeadlineExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /** Statistics on queries and their budgets, handed out through {@link #call} */
+    private final PetQueryStats mQueryStats = new PetQueryStats();
+
+    /** How often queries repeat the SQL text of a recent query */
+    private final PetQueryShapeStats mShapeStats = new PetQueryShapeStats();
+
+    /** Results of recent queries, valid until their shelter is next written to */
+    private final PetQueryCache mQueryCache = new PetQueryCache();
+
     /** Created and initialized PetDbHelper object for access to pets DB: a global variable,
      * & can be referenced from other ContentProvider methods. */
     private PetDbHelper mDbHelper;
 
+    /** Online backup and restore of the database */
+    private PetBackup mBackup;
+
+    /** Files of the pet photos and their thumbnails */
+    private PetPhotoStore mPhotoStore;
+
+    /** The databases of the shelters, the default one being {@link #mDbHelper} */
+    private PetShardManager mShards;
+
+    /**
+     * Maintenance of the default shelter's database, run while the device is idle and preempted
+     * by any other call on the default shelter
+     */
+    private PetMaintenance mMaintenance;
+
+    /** Removes deleted pets for good once they can no longer be brought back */
+    private PetReaper mReaper;
+
+    /** Name of the default shelter's database file */
+    private final String mDatabaseName;
+
+    public PetProvider() {
+        this(PetDbHelper.DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a provider whose default shelter keeps its pets in the database file of the
+     * given name, so tests can run a provider of their own without touching the user's pets.
+     * Attach it to a context to create it.
+     */
+    PetProvider(String databaseName) {
+        mDatabaseName = databaseName;
+    }
 
     /**
      * Initialize the provider and the database helper object.
@@ -65,19 +197,342 @@ public class PetProvider extends ContentProvider {
         from the java.lang.Object [inheriting properties of ContentProvider and other classes it
         extends from]
          */
-        mDbHelper = new PetDbHelper(getContext());
+        mDbHelper = new PetDbHelper(getContext(), mDatabaseName);
+        mBackup = new PetBackup(mDbHelper);
+        mPhotoStore = new PetPhotoStore(getContext());
+        mShards = new PetShardManager(getContext(), mDbHelper, mPhotoStore);
+        mMaintenance = mShards.getMaintenance(PetContract.DEFAULT_SHELTER_ID);
+        mReaper = mShards.getReaper(PetContract.DEFAULT_SHELTER_ID);
+        PetMaintenance.schedule(getContext());
         return true;
     }
 
+    /**
+     * Close the databases, for tests that run a provider of their own.
+     */
+    @Override
+    public void shutdown() {
+        mShards.close();
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Perform the query for the given URI, like {@link #query(Uri, String[], String, String[], String)}.
+     * If the caller cancels the signal, SQLite stops scanning and the query throws
+     * {@link OperationCanceledException}.
+     *
+     * Every query runs under a time and a row budget, taken from the
+     * {@link PetContract#QUERY_PARAMETER_TIMEOUT_MS} and {@link PetContract#QUERY_PARAMETER_MAX_ROWS}
+     * query parameters or their defaults. The CursorWindow is filled here, inside the budget,
+     * and a query going over either budget is cancelled with a {@link PetQueryBudgetException}.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        int match = sUriMatcher.match(uri);
+        if (match == ALL_SHELTERS) {
+            return queryAllShelters(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        }
+        long shelterId = getShelterId(uri, match);
+        mShards.getMaintenance(shelterId).onTraffic();
+        PetDbHelper shard = mShards.getDbHelper(shelterId);
+        shard.lockShared();
+        try {
+            // Taken before the query, so a write during it makes the result stale right away
+            long generation = shard.getGeneration();
+            String key = PetQueryCache.buildKey(uri, projection, selection, selectionArgs,
+                    sortOrder);
+            Cursor cursor = mQueryCache.get(key, generation);
+            if (cursor == null) {
+                long startNanos = System.nanoTime();
+                cursor = queryWithinBudget(shard, uri, projection, selection, selectionArgs,
+                        sortOrder, cancellationSignal);
+                cursor = mQueryCache.put(key, generation, cursor,
+                        (System.nanoTime() - startNanos) / 1000);
+            }
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            return cursor;
+        } finally {
+            shard.unlockShared();
+        }
+    }
+
+    /**
+     * Returns the shelter of the URI: the one in the path of the shelter URIs, the default one
+     * for every other URI.
+     */
+    private static long getShelterId(Uri uri, int match) {
+        if (match == SHELTER_PETS || match == SHELTER_PET_ID) {
+            // i.e. "content://com.example.android.pets/pets/shelter/2", the third segment
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+        return PetContract.DEFAULT_SHELTER_ID;
+    }
+
+    /**
+     * Returns the URI whose listeners are notified of changes to the pets of the given shelter.
+     */
+    private static Uri getShelterUri(long shelterId) {
+        return shelterId == PetContract.DEFAULT_SHELTER_ID ? PetEntry.CONTENT_URI
+                : PetEntry.buildShelterUri(shelterId);
+    }
+
+    /**
+     * Query the pets of every shelter, as described at {@link PetEntry#SHELTERS_URI}. Each
+     * shelter is queried on a thread of its own, under its own lock and budgets, and its
+     * CursorWindow filled there; the cursors are then returned one after the other. A
+     * {@link PetEntry#COLUMN_SHELTER_ID} in the projection is filled in with each shelter's ID.
+     *
+     * As the shelters' rows are only put one after the other, sorting or paging them would only
+     * sort or page each shelter on its own, so neither is accepted.
+     */
+    private Cursor queryAllShelters(final Uri uri, String[] projection, final String selection,
+                                    final String[] selectionArgs, final String sortOrder,
+                                    CancellationSignal cancellationSignal) {
+        if (!TextUtils.isEmpty(sortOrder)) {
+            throw new IllegalArgumentException("Cannot sort the pets of every shelter: " + uri);
+        }
+        if (uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT) != null
+                || uri.getQueryParameter(PetContract.QUERY_PARAMETER_OFFSET) != null) {
+            throw new IllegalArgumentException("Cannot page the pets of every shelter: " + uri);
+        }
+        long[] shelterIds = mShards.getShelterIds();
+
+        // A signal can only have one listener, so each shelter gets a signal of its own
+        final CancellationSignal[] signals = new CancellationSignal[shelterIds.length];
+        for (int i = 0; i < signals.length; i++) {
+            signals[i] = new CancellationSignal();
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (CancellationSignal signal : signals) {
+                        signal.cancel();
+                    }
+                }
+            });
+        }
+
+        List<Future<Cursor>> futures = new ArrayList<>(shelterIds.length);
+        for (int i = 0; i < shelterIds.length; i++) {
+            final long shelterId = shelterIds[i];
+            final CancellationSignal signal = signals[i];
+            final String[] shelterProjection = withShelterId(projection, shelterId);
+            // The same query parameters, such as the limit and time ranges, on the shelter
+            final Uri shelterUri = PetEntry.buildShelterUri(shelterId).buildUpon()
+                    .encodedQuery(uri.getEncodedQuery()).build();
+            futures.add(sShelterExecutor.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    mShards.getMaintenance(shelterId).onTraffic();
+                    PetDbHelper shard = mShards.getDbHelper(shelterId);
+                    shard.lockShared();
+                    try {
+                        return queryWithinBudget(shard, shelterUri, shelterProjection, selection,
+                                selectionArgs, sortOrder, signal);
+                    } finally {
+                        shard.unlockShared();
+                    }
+                }
+            }));
+        }
+
+        Cursor[] cursors = new Cursor[futures.size()];
+        RuntimeException failure = null;
+        for (int i = 0; i < cursors.length; i++) {
+            try {
+                cursors[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new IllegalStateException("Query failed for " + uri, e.getCause());
+                    // Don't leave the other shelters scanning for nothing
+                    for (CancellationSignal signal : signals) {
+                        signal.cancel();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new OperationCanceledException("Interrupted querying " + uri);
+                }
+            }
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(null);
+        }
+        if (failure != null) {
+            for (Cursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            throw failure;
+        }
+
+        Cursor cursor = new MergeCursor(cursors);
+        // The default shelter's changes are notified on the pets URI, which the others are under
+        cursor.setNotificationUri(getContext().getContentResolver(), PetEntry.CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Returns the projection with {@link PetEntry#COLUMN_SHELTER_ID}, if asked for, replaced by
+     * the given shelter ID.
+     */
+    private static String[] withShelterId(String[] projection, long shelterId) {
+        if (projection == null) {
+            return null;
+        }
+        String[] shelterProjection = projection.clone();
+        for (int i = 0; i < shelterProjection.length; i++) {
+            if (PetEntry.COLUMN_SHELTER_ID.equals(shelterProjection[i])) {
+                shelterProjection[i] = shelterId + " AS " + PetEntry.COLUMN_SHELTER_ID;
+            }
+        }
+        return shelterProjection;
+    }
+
+    /**
+     * Does the budget enforcement of
+     * {@link #query(Uri, String[], String, String[], String, CancellationSignal)} on the given
+     * shelter's database.
+     */
+    private Cursor queryWithinBudget(PetDbHelper shard, Uri uri, String[] projection,
+                                     String selection, String[] selectionArgs, String sortOrder,
+                                     CancellationSignal cancellationSignal) {
+        long traceStart = PetTrace.begin("PetProvider.query");
+        long startNanos = System.nanoTime();
+        long timeoutMs = getBudget(uri, PetContract.QUERY_PARAMETER_TIMEOUT_MS,
+                PetContract.DEFAULT_QUERY_TIMEOUT_MS, PetContract.MAX_QUERY_TIMEOUT_MS);
+        int maxRows = (int) getBudget(uri, PetContract.QUERY_PARAMETER_MAX_ROWS,
+                PetContract.DEFAULT_QUERY_MAX_ROWS, PetContract.MAX_QUERY_MAX_ROWS);
+
+        // Our own signal is cancelled either by the caller or when the time budget runs out
+        final CancellationSignal signal = new CancellationSignal();
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    signal.cancel();
+                }
+            });
+        }
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> deadline = sDeadlineExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                signal.cancel();
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        Cursor cursor = null;
+        int rows = -1;
+        boolean success = false;
+        try {
+            // Ask for one row more than the budget, to tell whether the budget was exceeded
+            cursor = queryPets(shard, uri, projection, selection, selectionArgs, sortOrder,
+                    maxRows + 1, signal);
+
+            // Fill the CursorWindow now, while the deadline still applies, instead of leaving
+            // the scan to whichever caller first touches the cursor.
+            long fillStart = PetTrace.begin("PetProvider.fillWindow");
+            rows = cursor.getCount();
+            PetTrace.end("PetProvider.fillWindow", fillStart, rows);
+
+            if (rows > maxRows) {
+                mQueryStats.recordRowBudgetHit();
+                throw new PetQueryBudgetException("more than " + maxRows + " rows for " + uri);
+            }
+            success = true;
+            return cursor;
+        } catch (OperationCanceledException e) {
+            if (!timedOut.get()) {
+                // Cancelled by the caller, so pass that on as is
+                throw e;
+            }
+            mQueryStats.recordTimeout();
+            throw new PetQueryBudgetException("ran longer than " + timeoutMs + " ms for " + uri);
+        } finally {
+            deadline.cancel(false);
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+            if (!success && cursor != null) {
+                cursor.close();
+            }
+            mQueryStats.recordQuery(describeShape(uri, selection, sortOrder),
+                    (System.nanoTime() - startNanos) / 1000);
+            PetTrace.end("PetProvider.query", traceStart, rows);
+        }
+    }
+
+    /**
+     * Describe the shape of a query for {@link PetQueryStats}: the URI pattern it matched,
+     * its selection and its sort order.
+     */
+    private static String describeShape(Uri uri, String selection, String sortOrder) {
+        String path;
+        switch (sUriMatcher.match(uri)) {
+            case PETS:
+                path = PetContract.PATH_PETS;
+                break;
+            case PET_ID:
+                path = PetContract.PATH_PETS + "/#";
+                break;
+            case SHELTER_PETS:
+                path = PetContract.PATH_PETS + "/" + PetContract.PATH_SHELTER + "/#";
+                break;
+            case SHELTER_PET_ID:
+                path = PetContract.PATH_PETS + "/" + PetContract.PATH_SHELTER + "/#/#";
+                break;
+            default:
+                path = uri.getPath();
+                break;
+        }
+        return path + " WHERE " + selection + " ORDER BY " + sortOrder;
+    }
+
+    /**
+     * Read a budget from the given query parameter, falling back to the default if it is
+     * missing and capping it at the maximum.
+     */
+    private static long getBudget(Uri uri, String parameter, long defaultValue, long maxValue) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long budget = Long.parseLong(value);
+            if (budget <= 0) {
+                throw new IllegalArgumentException("Invalid " + parameter + " in " + uri);
+            }
+            return Math.min(budget, maxValue);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " in " + uri);
+        }
+    }
 
+    /**
+     * Does the actual work of {@link #query(Uri, String[], String, String[], String, CancellationSignal)}.
+     */
+    private Cursor queryPets(PetDbHelper shard, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder, int maxRows,
+                             CancellationSignal cancellationSignal) {
         // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        SQLiteDatabase database = shard.getReadableDatabase();
 
         // This will hold the query result
         Cursor cursor;
@@ -86,15 +541,24 @@ public class PetProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
                 /*
                 For PETS code, query pets table directly with the given projection, selection,
                 selection arguments, and sort order. The cursor could contain multiple rows of
                 the pets table.
                  */
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                List<String> args = new ArrayList<>();
+                if (selectionArgs != null) {
+                    Collections.addAll(args, selectionArgs);
+                }
+                selection = DatabaseUtils.concatenateWhere(LIVE_SELECTION,
+                        DatabaseUtils.concatenateWhere(selection, buildTimeRange(uri, args)));
+                boolean hasOffset = addLimit(uri, maxRows, args);
+                cursor = queryPlan(database, projection, selection, sortOrder, hasOffset, args,
+                        cancellationSignal);
                 break;
             case PET_ID:
+            case SHELTER_PET_ID:
                 /*
                 For the PET_ID code, extract ID from URI.
                 i.e. "content://com.example.android.pets/pets/3"
@@ -102,13 +566,16 @@ public class PetProvider extends ContentProvider {
                 For every "?" in selection, need element in selectionArgs with ratio 1:1.
                 i.e. SQL statement of SELECT id FROM pets WHERE _id=3
                  */
-                selection = PetEntry._ID + "=?";
-                // The following line extracts the number from the query and converts to string
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                selection = PetEntry._ID + "=? AND " + LIVE_SELECTION;
+                // The following line extracts the number from the query and converts to string,
+                // followed by the row budget for the LIMIT
+                List<String> idArgs = new ArrayList<>();
+                idArgs.add(String.valueOf(ContentUris.parseId(uri)));
+                idArgs.add(String.valueOf(maxRows));
 
                 // This will perform query on pets table where _id = 3 to return cursor w/ that row.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryPlan(database, projection, selection, sortOrder, false, idArgs,
+                        cancellationSignal);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query known URI " + uri);
@@ -123,6 +590,499 @@ public class PetProvider extends ContentProvider {
     }
 
 
+    /**
+     * Build the selection for the time-range query parameters of the URI, such as
+     * {@link PetContract#QUERY_PARAMETER_CREATED_SINCE}, adding their values to the given
+     * arguments. Returns null if the URI has none.
+     */
+    static String buildTimeRange(Uri uri, List<String> args) {
+        StringBuilder range = new StringBuilder();
+        appendBound(uri, PetContract.QUERY_PARAMETER_CREATED_SINCE,
+                PetEntry.COLUMN_PET_CREATED_AT + ">=?", range, args);
+        appendBound(uri, PetContract.QUERY_PARAMETER_CREATED_BEFORE,
+                PetEntry.COLUMN_PET_CREATED_AT + "<?", range, args);
+        appendBound(uri, PetContract.QUERY_PARAMETER_UPDATED_SINCE,
+                PetEntry.COLUMN_PET_UPDATED_AT + ">=?", range, args);
+        appendBound(uri, PetContract.QUERY_PARAMETER_UPDATED_BEFORE,
+                PetEntry.COLUMN_PET_UPDATED_AT + "<?", range, args);
+        return range.length() == 0 ? null : range.toString();
+    }
+
+    private static void appendBound(Uri uri, String parameter, String condition,
+                                    StringBuilder range, List<String> args) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return;
+        }
+        try {
+            // Bound as a number, so the comparison uses the integer index
+            args.add(String.valueOf(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " in " + uri);
+        }
+        if (range.length() > 0) {
+            range.append(" AND ");
+        }
+        range.append(condition);
+    }
+
+    /**
+     * Add the values of the LIMIT and OFFSET from the {@link PetContract#QUERY_PARAMETER_LIMIT}
+     * and {@link PetContract#QUERY_PARAMETER_OFFSET} query parameters to the given arguments,
+     * never allowing more than the given number of rows. They are bound like the rest of the
+     * arguments, so paging through the pets doesn't make a new SQL text for every page.
+     *
+     * @return whether there is an OFFSET.
+     */
+    private static boolean addLimit(Uri uri, int maxRows, List<String> args) {
+        String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        String offset = uri.getQueryParameter(PetContract.QUERY_PARAMETER_OFFSET);
+        try {
+            // Parse the values so they are bound as plain numbers
+            int rowLimit = limit == null ? maxRows : Math.min(Integer.parseInt(limit), maxRows);
+            args.add(String.valueOf(rowLimit));
+            if (limit == null || offset == null) {
+                return false;
+            }
+            args.add(String.valueOf(Integer.parseInt(offset)));
+            return true;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit or offset in " + uri);
+        }
+    }
+
+    /**
+     * Query the pets table with SQL whose text depends only on the shape of the query, the
+     * limit and offset being the last of the given arguments, so SQLite's statement cache can
+     * reuse the statement it compiled for the shape before.
+     */
+    private Cursor queryPlan(SQLiteDatabase database, String[] projection, String selection,
+                             String sortOrder, boolean hasOffset, List<String> args,
+                             CancellationSignal cancellationSignal) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        sql.append(projection == null ? "*" : TextUtils.join(", ", projection));
+        sql.append(" FROM ").append(PetEntry.TABLE_NAME).append(" WHERE ").append(selection);
+        if (!TextUtils.isEmpty(sortOrder)) {
+            sql.append(" ORDER BY ").append(sortOrder);
+        }
+        sql.append(hasOffset ? " LIMIT ? OFFSET ?" : " LIMIT ?");
+
+        String query = sql.toString();
+        mShapeStats.record(query);
+        return database.rawQuery(query, args.toArray(new String[args.size()]),
+                cancellationSignal);
+    }
+
+    /**
+     * Handle provider methods called through {@link android.content.ContentResolver#call}.
+     */
+    @Override
+    public Bundle call(@NonNull final String method, final String arg, final Bundle extras) {
+        long startNanos = System.nanoTime();
+        switch (method) {
+            case PetContract.METHOD_GET_QUERY_STATS:
+                Bundle stats = mQueryStats.toBundle();
+                stats.putAll(mShapeStats.toBundle());
+                stats.putAll(mQueryCache.toBundle());
+                return stats;
+            case PetContract.METHOD_GET_MAINTENANCE_STATS:
+                return mShards.getMaintenanceStats();
+            case PetContract.METHOD_RUN_MAINTENANCE:
+                return mShards.runMaintenance();
+            case PetContract.METHOD_CANCEL_MAINTENANCE:
+                mShards.cancelMaintenance();
+                return null;
+            case PetContract.METHOD_CREATE_SHELTER:
+                try {
+                    mShards.createShelter(Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid shelter " + arg);
+                }
+                return null;
+            case PetContract.METHOD_DELETE_SHELTER:
+                long deletedShelterId;
+                try {
+                    deletedShelterId = Long.parseLong(arg);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid shelter " + arg);
+                }
+                mShards.deleteShelter(deletedShelterId);
+                // A shelter created again under the ID starts its generations over
+                mQueryCache.clear();
+                getContext().getContentResolver().notifyChange(
+                        getShelterUri(deletedShelterId), null);
+                return null;
+        }
+
+        // The batch methods may act on another shelter
+        final long shelterId = extras == null ? PetContract.DEFAULT_SHELTER_ID
+                : extras.getLong(PetContract.KEY_SHELTER_ID, PetContract.DEFAULT_SHELTER_ID);
+        final PetDbHelper shard = mShards.getDbHelper(shelterId);
+
+        // Everything else is a caller the maintenance has to make way for
+        mShards.getMaintenance(shelterId).onTraffic();
+        switch (method) {
+            case PetContract.METHOD_BATCH_DELETE:
+            case PetContract.METHOD_BATCH_SET_GENDER:
+            case PetContract.METHOD_BATCH_ADJUST_WEIGHT:
+                shard.lockShared();
+                try {
+                    return runWrite(shard, new DatabaseWrite<Bundle>() {
+                        @Override
+                        public Bundle run() {
+                            return runBatch(shard, shelterId, method, extras);
+                        }
+                    });
+                } finally {
+                    shard.unlockShared();
+                    recordWrite(shard, startNanos);
+                }
+            case PetContract.METHOD_UNDO_DELETE:
+                shard.lockShared();
+                try {
+                    return runWrite(shard, new DatabaseWrite<Bundle>() {
+                        @Override
+                        public Bundle run() {
+                            return undoDelete(shard, shelterId, extras);
+                        }
+                    });
+                } finally {
+                    shard.unlockShared();
+                    recordWrite(shard, startNanos);
+                }
+            case PetContract.METHOD_MERGE_DUPLICATES:
+                shard.lockShared();
+                try {
+                    return runWrite(shard, new DatabaseWrite<Bundle>() {
+                        @Override
+                        public Bundle run() {
+                            return mergeDuplicates(shard, shelterId, extras);
+                        }
+                    });
+                } finally {
+                    shard.unlockShared();
+                    recordWrite(shard, startNanos);
+                }
+            case PetContract.METHOD_SET_UNDO_WINDOW:
+                try {
+                    mReaper.setUndoWindowMillis(Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid undo window " + arg);
+                }
+                return null;
+            case PetContract.METHOD_LOAD_SNAPSHOT:
+                mDbHelper.lockShared();
+                try {
+                    return runWrite(mDbHelper, new DatabaseWrite<Bundle>() {
+                        @Override
+                        public Bundle run() {
+                            return loadSnapshot(getFile(arg));
+                        }
+                    });
+                } finally {
+                    mDbHelper.unlockShared();
+                    mBackup.recordWrite((System.nanoTime() - startNanos) / 1000);
+                }
+            case PetContract.METHOD_BACKUP:
+                return mBackup.backup(getFile(arg));
+            case PetContract.METHOD_RESTORE:
+                mBackup.restore(getFile(arg));
+                // Everything may have changed
+                getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Returns the file at the given absolute path, as passed to the backup and snapshot methods.
+     */
+    private static File getFile(String path) {
+        if (path == null || !path.startsWith(File.separator)) {
+            throw new IllegalArgumentException("Method requires an absolute path");
+        }
+        return new File(path);
+    }
+
+    /**
+     * Record a write to the given shelter's database for the backup's write stall statistics,
+     * which are only about the default shelter, the one that is backed up.
+     */
+    private void recordWrite(PetDbHelper shard, long startNanos) {
+        if (shard == mDbHelper) {
+            mBackup.recordWrite((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    /**
+     * Notify the listeners of the URI that pets of the given shelter changed. The shelter's
+     * generation is bumped first, so a listener querying straight away never gets a result
+     * cached from before the change.
+     */
+    private void notifyChange(PetDbHelper shard, Uri uri) {
+        shard.bumpGeneration();
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Run the write on the given shelter's database. Every write goes through here, so the
+     * shelter's generation is bumped once it is over, even if it failed halfway or changed pets
+     * without notifying anyone.
+     */
+    private <T> T runWrite(PetDbHelper shard, DatabaseWrite<T> write) {
+        try {
+            return write.run();
+        } finally {
+            shard.bumpGeneration();
+        }
+    }
+
+    /**
+     * Bulk-load a {@link PetSnapshot} into the pets table. The file is memory-mapped and decoded
+     * straight into one compiled insert statement inside a single transaction, so there is no
+     * per-row parsing of SQL, no per-row commit and a single change notification. A snapshot
+     * that is corrupt or holds invalid pets loads nothing.
+     *
+     * The loaded pets are added with new IDs, in snapshot order. Their snapshot IDs come from
+     * another database, so keeping them could overwrite unrelated pets, or bring back pets
+     * that were deleted here.
+     */
+    private Bundle loadSnapshot(File file) {
+        long traceStart = PetTrace.begin("PetProvider.loadSnapshot");
+        int rows = 0;
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                // Snapshots don't carry timestamps, so loaded pets count as added now
+                long now = System.currentTimeMillis();
+                final SQLiteStatement insert = database.compileStatement("INSERT INTO "
+                        + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME + ", "
+                        + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                        + PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_CREATED_AT + ", "
+                        + PetEntry.COLUMN_PET_UPDATED_AT + ") VALUES (?, ?, ?, ?, " + now + ", "
+                        + now + ")");
+                database.beginTransaction();
+                try {
+                    rows = PetSnapshot.read(buffer, new PetSnapshot.RowHandler() {
+                        @Override
+                        public void onRow(long id, String name, String breed, int gender,
+                                          int weight) {
+                            // Same checks as insertPet()
+                            if (TextUtils.isEmpty(name) || !PetEntry.isValidGender(gender)
+                                    || weight < 0) {
+                                throw new IllegalArgumentException("Invalid pet " + id
+                                        + " in snapshot");
+                            }
+                            insert.bindString(1, name);
+                            if (breed == null) {
+                                insert.bindNull(2);
+                            } else {
+                                insert.bindString(2, breed);
+                            }
+                            insert.bindLong(3, gender);
+                            insert.bindLong(4, weight);
+                            insert.executeInsert();
+                        }
+                    });
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    insert.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read snapshot " + file, e);
+        } finally {
+            PetTrace.end("PetProvider.loadSnapshot", traceStart, rows);
+        }
+
+        if (rows != 0) {
+            notifyChange(mDbHelper, PetEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_AFFECTED, rows);
+        return result;
+    }
+
+    /**
+     * Delete or update every pet in the {@link PetContract#KEY_IDS} of the extras in one
+     * transaction, then send one change notification for the whole shelter.
+     */
+    private Bundle runBatch(PetDbHelper shard, long shelterId, String method, Bundle extras) {
+        long[] ids = extras == null ? null : extras.getLongArray(PetContract.KEY_IDS);
+        if (ids == null) {
+            throw new IllegalArgumentException("Batch requires pet IDs");
+        }
+
+        // Each statement is "<prefix> IN (?,?,...)", optionally with one value bound first
+        String prefix;
+        Long value = null;
+        switch (method) {
+            case PetContract.METHOD_BATCH_DELETE:
+                // Only marks them deleted, see deletePets()
+                prefix = "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DELETED_AT
+                        + "=" + System.currentTimeMillis() + ", " + PetEntry.COLUMN_PET_FINGERPRINT
+                        + "=NULL WHERE " + LIVE_SELECTION + " AND " + PetEntry._ID;
+                break;
+            case PetContract.METHOD_BATCH_SET_GENDER:
+                int gender = extras.getInt(PetContract.KEY_GENDER, -1);
+                if (!PetEntry.isValidGender(gender)) {
+                    throw new IllegalArgumentException("Pet requires valid gender");
+                }
+                prefix = "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_GENDER
+                        + "=?, " + PetEntry.COLUMN_PET_UPDATED_AT + "="
+                        + System.currentTimeMillis() + " WHERE " + LIVE_SELECTION + " AND "
+                        + PetEntry._ID;
+                value = (long) gender;
+                break;
+            default:
+                prefix = "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_WEIGHT
+                        + "=MAX(0," + PetEntry.COLUMN_PET_WEIGHT + "+?), "
+                        + PetEntry.COLUMN_PET_UPDATED_AT + "=" + System.currentTimeMillis()
+                        + " WHERE " + LIVE_SELECTION + " AND " + PetEntry._ID;
+                value = (long) extras.getInt(PetContract.KEY_WEIGHT_DELTA);
+                break;
+        }
+
+        long traceStart = PetTrace.begin("PetProvider.runBatch");
+        int rowsAffected = 0;
+        try {
+            rowsAffected = updateInChunks(shard, prefix, value, ids);
+        } finally {
+            PetTrace.end("PetProvider.runBatch", traceStart, rowsAffected);
+        }
+
+        if (rowsAffected != 0) {
+            notifyChange(shard, getShelterUri(shelterId));
+            if (PetContract.METHOD_BATCH_DELETE.equals(method)) {
+                mShards.getReaper(shelterId).schedulePurge();
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_AFFECTED, rowsAffected);
+        return result;
+    }
+
+    /**
+     * Bring back the pets in the {@link PetContract#KEY_IDS} of the extras, or the pets marked
+     * with its {@link PetContract#KEY_DELETED_AT}, that were deleted within the undo window, in
+     * one transaction, with one change notification.
+     */
+    private Bundle undoDelete(PetDbHelper shard, long shelterId, Bundle extras) {
+        long[] ids = extras == null ? null : extras.getLongArray(PetContract.KEY_IDS);
+        long deletedAt = extras == null ? 0 : extras.getLong(PetContract.KEY_DELETED_AT);
+        if (ids == null && deletedAt <= 0) {
+            throw new IllegalArgumentException("Undo requires pet IDs or a deletion time");
+        }
+        // Deleting cleared the fingerprint, so the pet didn't count as a duplicate meanwhile
+        long cutoff = System.currentTimeMillis() - mReaper.getUndoWindowMillis();
+        String prefix = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+                + PetEntry.COLUMN_PET_DELETED_AT + "=0, " + PetEntry.COLUMN_PET_FINGERPRINT + "="
+                + PetDbHelper.fingerprintOf(PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT)
+                + " WHERE " + PetEntry.COLUMN_PET_DELETED_AT + ">=? AND ";
+        int rowsAffected;
+        if (ids != null) {
+            rowsAffected = updateInChunks(shard, prefix + PetEntry._ID, cutoff, ids);
+        } else {
+            // One statement on the index, however many pets the merge deleted
+            SQLiteStatement undo = shard.getWritableDatabase().compileStatement(prefix
+                    + PetEntry.COLUMN_PET_DELETED_AT + "=?");
+            try {
+                undo.bindLong(1, cutoff);
+                undo.bindLong(2, deletedAt);
+                rowsAffected = undo.executeUpdateDelete();
+            } finally {
+                undo.close();
+            }
+        }
+        if (rowsAffected != 0) {
+            notifyChange(shard, getShelterUri(shelterId));
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_AFFECTED, rowsAffected);
+        return result;
+    }
+
+    /**
+     * Merge the duplicate pets of the given shelter, deleting all but one of each group, for at
+     * most {@link PetContract#MERGE_DUPLICATES_BUDGET_MS}, with one change notification. Goes on
+     * from the {@link PetContract#KEY_MERGE_RESUME} of the extras, if any, marking the deleted
+     * pets with their {@link PetContract#KEY_DELETED_AT} so the whole merge is undone at once.
+     */
+    private Bundle mergeDuplicates(PetDbHelper shard, long shelterId, Bundle extras) {
+        String resume = extras == null ? null : extras.getString(PetContract.KEY_MERGE_RESUME);
+        long deletedAt = extras == null ? 0 : extras.getLong(PetContract.KEY_DELETED_AT);
+        if (resume == null || deletedAt <= 0) {
+            resume = "";
+            deletedAt = System.currentTimeMillis();
+        }
+        PetDedup dedup = new PetDedup(shard.getWritableDatabase(), deletedAt, resume);
+        boolean complete = dedup.run(PetContract.MERGE_DUPLICATES_BUDGET_MS);
+        if (dedup.getDeletedCount() != 0) {
+            notifyChange(shard, getShelterUri(shelterId));
+            mShards.getReaper(shelterId).schedulePurge();
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_AFFECTED, dedup.getDeletedCount());
+        result.putLong(PetContract.KEY_DELETED_AT, deletedAt);
+        if (!complete) {
+            result.putString(PetContract.KEY_MERGE_RESUME, dedup.getLastFingerprint());
+        }
+        return result;
+    }
+
+    /**
+     * Run "prefix IN (?,?,...)" over all the given IDs on the given shelter's database in one
+     * transaction, optionally with one value bound before the IDs.
+     *
+     * @return the number of rows affected.
+     */
+    private int updateInChunks(PetDbHelper shard, String prefix, Long value, long[] ids) {
+        int rowsAffected = 0;
+        SQLiteDatabase database = shard.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            // SQLite limits the number of "?" arguments per statement, so go in chunks
+            for (int start = 0; start < ids.length; start += BATCH_CHUNK_SIZE) {
+                int end = Math.min(start + BATCH_CHUNK_SIZE, ids.length);
+                StringBuilder sql = new StringBuilder(prefix).append(" IN (");
+                for (int i = start; i < end; i++) {
+                    sql.append(i == start ? "?" : ",?");
+                }
+                sql.append(')');
+
+                SQLiteStatement statement = database.compileStatement(sql.toString());
+                try {
+                    int index = 1;
+                    if (value != null) {
+                        statement.bindLong(index++, value);
+                    }
+                    for (int i = start; i < end; i++) {
+                        statement.bindLong(index++, ids[i]);
+                    }
+                    rowsAffected += statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return rowsAffected;
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -131,35 +1091,317 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
+            case ALL_SHELTERS:
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
+            case SHELTER_PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_PHOTO:
+                return PetEntry.PHOTO_MIME_TYPE;
+            case PET_THUMBNAIL:
+                return PetEntry.THUMBNAIL_MIME_TYPE;
+            case PETS_STREAM:
+                return PetContract.SNAPSHOT_MIME_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Open the photo or thumbnail of a pet. Both can be read; the photo can also be written
+     * ("w" mode), in which case the caller gets the write end of a pipe and the photo is stored,
+     * and its thumbnail made, once the caller closes it.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        mMaintenance.onTraffic();
+        final int match = sUriMatcher.match(uri);
+        if (match != PET_PHOTO && match != PET_THUMBNAIL) {
+            throw new IllegalArgumentException("Cannot open file for " + uri);
+        }
+        // i.e. "content://com.example.android.pets/pets/3/photo", the ID is the middle segment
+        final long id = Long.parseLong(uri.getPathSegments().get(1));
+
+        if ("r".equals(mode)) {
+            // The files of a deleted pet stay until it is purged, in case it is brought back
+            if (!petExists(id)) {
+                throw new FileNotFoundException("No pet for " + uri);
+            }
+            File file = match == PET_PHOTO ? mPhotoStore.getPhotoFile(id)
+                    : mPhotoStore.getThumbnailFile(id);
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        if (match != PET_PHOTO || !mode.startsWith("w")) {
+            throw new IllegalArgumentException("Cannot open " + uri + " in mode " + mode);
+        }
+        if (!petExists(id)) {
+            throw new FileNotFoundException("No pet for " + uri);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot open " + uri + ": " + e);
+        }
+        sPhotoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                storePhoto(id, pipe[0]);
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Open the pet stream of {@link PetEntry#STREAM_URI}, restricted by the shelter and the
+     * selection in the options, if any. The caller gets the read end of a pipe, and the pets are
+     * written into it as {@link PetSnapshot} blocks as fast as the caller reads them: a full pipe
+     * blocks the writer, so at most a block is ever waiting in memory. Other URIs are opened as
+     * usual.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter,
+                                                  Bundle opts) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PETS_STREAM) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        if (!ClipDescription.compareMimeTypes(PetContract.SNAPSHOT_MIME_TYPE, mimeTypeFilter)) {
+            throw new FileNotFoundException("Cannot stream " + uri + " as " + mimeTypeFilter);
+        }
+        long shelterId = opts == null ? PetContract.DEFAULT_SHELTER_ID
+                : opts.getLong(PetContract.KEY_SHELTER_ID, PetContract.DEFAULT_SHELTER_ID);
+        final PetDbHelper shard = mShards.getDbHelper(shelterId);
+        mShards.getMaintenance(shelterId).onTraffic();
+        final String selection = opts == null ? null : opts.getString(PetContract.KEY_SELECTION);
+        final String[] selectionArgs = opts == null ? null
+                : opts.getStringArray(PetContract.KEY_SELECTION_ARGS);
+        checkSelection(shard, selection, selectionArgs);
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot open " + uri + ": " + e);
+        }
+        sStreamExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                streamPets(shard, pipe[1], selection, selectionArgs);
+            }
+        });
+        return new AssetFileDescriptor(pipe[0], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Compile the selection of a stream once up front, so a caller passing an invalid one gets
+     * the error rather than an empty stream.
+     */
+    private static void checkSelection(PetDbHelper shard, String selection,
+                                       String[] selectionArgs) {
+        if (selection == null) {
+            return;
+        }
+        shard.lockShared();
+        try {
+            SQLiteStatement statement = shard.getReadableDatabase().compileStatement(
+                    "SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + " WHERE "
+                            + selection);
+            try {
+                if (selectionArgs != null) {
+                    statement.bindAllArgsAsStrings(selectionArgs);
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException("Invalid selection " + selection, e);
+        } finally {
+            shard.unlockShared();
+        }
+    }
+
+    /**
+     * Write the pets of the given shelter matching the selection into the pipe, a
+     * {@link PetSnapshot} block per page of pets read by key. Each page is read and encoded into
+     * memory under the shared lock, and only written into the pipe once the lock is released,
+     * so a slow reader never holds up a restore. Runs on a stream thread until the stream ends
+     * or the reader closes its end.
+     */
+    private static void streamPets(PetDbHelper shard, ParcelFileDescriptor sink,
+                                   String selection, String[] selectionArgs) {
+        long traceStart = PetTrace.begin("PetProvider.streamPets");
+        long startMillis = SystemClock.elapsedRealtime();
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        String pageSelection = DatabaseUtils.concatenateWhere(
+                PetEntry._ID + ">? AND " + LIVE_SELECTION, selection);
+        int rows = 0;
+        long bytes = 0;
+        try {
+            PetSnapshot.Writer writer = new PetSnapshot.Writer(block);
+            long lastId = -1;
+            int pageRows;
+            do {
+                shard.lockShared();
+                try {
+                    Cursor cursor = shard.getReadableDatabase().query(PetEntry.TABLE_NAME,
+                            PetSnapshot.PROJECTION, pageSelection,
+                            DatabaseUtils.appendSelectionArgs(
+                                    new String[] { String.valueOf(lastId) }, selectionArgs),
+                            null, null, PetEntry._ID + " ASC",
+                            String.valueOf(PetSnapshot.BLOCK_ROWS));
+                    try {
+                        pageRows = cursor.getCount();
+                        // A full page fills a block, which the writer encodes into memory
+                        while (cursor.moveToNext()) {
+                            lastId = cursor.getLong(0);
+                            writer.add(lastId, cursor.getString(1), cursor.getString(2),
+                                    cursor.getInt(3), cursor.getInt(4));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                } finally {
+                    shard.unlockShared();
+                }
+                rows += pageRows;
+                if (pageRows == PetSnapshot.BLOCK_ROWS) {
+                    // One write per block; it blocks while the reader is a pipe's worth behind
+                    bytes += block.size();
+                    block.writeTo(out);
+                    block.reset();
+                }
+            } while (pageRows == PetSnapshot.BLOCK_ROWS);
+            writer.finish();
+            bytes += block.size();
+            block.writeTo(out);
+
+            long durationMillis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+            Log.i(LOG_TAG, "Streamed " + rows + " pets, " + bytes + " bytes in "
+                    + durationMillis + " ms (" + bytes * 1000 / 1024 / durationMillis + " KB/s)");
+        } catch (IOException e) {
+            // Usually the reader closing its end early; either way it sees a truncated stream
+            Log.w(LOG_TAG, "Pet stream ended after " + rows + " pets", e);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Pet stream failed after " + rows + " pets", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close pet stream", e);
+            }
+            PetTrace.end("PetProvider.streamPets", traceStart, rows);
+        }
+    }
+
+    /**
+     * Returns whether a pet with the given ID exists.
+     */
+    private boolean petExists(long id) {
+        mDbHelper.lockShared();
+        try {
+            return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                    PetEntry.TABLE_NAME, PetEntry._ID + "=? AND " + LIVE_SELECTION,
+                    new String[] { String.valueOf(id) }) != 0;
+        } finally {
+            mDbHelper.unlockShared();
+        }
+    }
+
+    /**
+     * Store a photo read from the given pipe, then record when it was written so the catalog
+     * reloads the pet's thumbnail. Runs on the photo thread.
+     */
+    private void storePhoto(long id, ParcelFileDescriptor source) {
+        long traceStart = PetTrace.begin("PetProvider.storePhoto");
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+        boolean stored;
+        try {
+            stored = mPhotoStore.store(id, in);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close photo pipe", e);
+            }
+            PetTrace.end("PetProvider.storePhoto", traceStart, 1);
+        }
+        if (stored) {
+            setPhotoUpdatedAt(id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Record when the photo of the given pet was last written, or 0 if it has none, and notify
+     * the pet's listeners. If the pet was deleted in the meantime, its files are removed.
+     *
+     * @return the number of pets updated, 0 or 1.
+     */
+    private int setPhotoUpdatedAt(final long id, long photoUpdatedAt) {
+        long startNanos = System.nanoTime();
+        int rowsUpdated;
+        mDbHelper.lockShared();
+        try {
+            final ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_PHOTO_UPDATED_AT, photoUpdatedAt);
+            values.put(PetEntry.COLUMN_PET_UPDATED_AT, System.currentTimeMillis());
+            rowsUpdated = runWrite(mDbHelper, new DatabaseWrite<Integer>() {
+                @Override
+                public Integer run() {
+                    return mDbHelper.getWritableDatabase().update(PetEntry.TABLE_NAME, values,
+                            PetEntry._ID + "=? AND " + LIVE_SELECTION,
+                            new String[] { String.valueOf(id) });
+                }
+            });
+        } finally {
+            mDbHelper.unlockShared();
+            mBackup.recordWrite((System.nanoTime() - startNanos) / 1000);
+        }
+        if (rowsUpdated == 0) {
+            mPhotoStore.delete(id);
+            return 0;
+        }
+        notifyChange(mDbHelper, ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        return rowsUpdated;
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
-    public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
+    public Uri insert(@NonNull final Uri uri, final ContentValues contentValues) {
         // Check if there's a match
         final int match = sUriMatcher.match(uri);
         // Determine which case it falls into -- ONLY PETS CASE supports insertion since acting on
         // entire table. Otherwise it will resort to default.
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        if (match != PETS && match != SHELTER_PETS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+        final long shelterId = getShelterId(uri, match);
+        final PetDbHelper shard = mShards.getDbHelper(shelterId);
+        mShards.getMaintenance(shelterId).onTraffic();
+        long startNanos = System.nanoTime();
+        shard.lockShared();
+        try {
+            return runWrite(shard, new DatabaseWrite<Uri>() {
+                @Override
+                public Uri run() {
+                    return insertPet(shard, shelterId, uri, contentValues);
+                }
+            });
+        } finally {
+            shard.unlockShared();
+            recordWrite(shard, startNanos);
         }
     }
 
     /**
      * Insert new pet into DB with content values. Return new content URI for specific row in DB.
      */
-    private Uri insertPet(Uri uri, ContentValues values) {
+    private Uri insertPet(PetDbHelper shard, long shelterId, Uri uri, ContentValues values) {
         // Check that name is not null-- added native isEmpty check;
         // could also be || name.isEmpty() ) {...
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
@@ -183,8 +1425,26 @@ public class PetProvider extends ContentProvider {
 
         // No need to check breed, any value including null is valid.
 
+        // The timestamps belong to the provider, and the fingerprint to the database
+        values = new ContentValues(values);
+        long now = System.currentTimeMillis();
+        values.put(PetEntry.COLUMN_PET_CREATED_AT, now);
+        values.put(PetEntry.COLUMN_PET_UPDATED_AT, now);
+        values.remove(PetEntry.COLUMN_PET_FINGERPRINT);
+
         // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = shard.getWritableDatabase();
+
+        if (Boolean.parseBoolean(uri.getQueryParameter(
+                PetContract.QUERY_PARAMETER_SKIP_DUPLICATE))) {
+            long duplicateId = findDuplicate(database, name,
+                    values.getAsString(PetEntry.COLUMN_PET_BREED), gender,
+                    weight == null ? 0 : weight);
+            if (duplicateId != -1) {
+                Log.v(LOG_TAG, "Not adding a duplicate of pet " + duplicateId);
+                return ContentUris.withAppendedId(getShelterUri(shelterId), duplicateId);
+            }
+        }
 
         // Insert new pet with given values
         long id = database.insert(PetEntry.TABLE_NAME, null, values);
@@ -196,35 +1456,78 @@ public class PetProvider extends ContentProvider {
 
         // Notify all listeners that the data has changed for the pet content URI
         // uri: content://com.example.android.pets/pets
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(shard, uri);
 
         // Return new URI with ID (of newly inserted row) appended to end
         return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * Returns the ID of a pet with the same fingerprint as the given values, or -1 if there is
+     * none. The fingerprint is worked out by the same expression the database fills the column
+     * with, so this is a single probe of the fingerprint index.
+     */
+    private static long findDuplicate(SQLiteDatabase database, String name, String breed,
+                                      int gender, int weight) {
+        // No breed and an empty breed have the same fingerprint, and null can't be bound
+        Cursor cursor = database.rawQuery("SELECT " + PetEntry._ID + " FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_FINGERPRINT + "="
+                + PetDbHelper.fingerprintOf("?", "?", "?", "?") + " LIMIT 1", new String[] {
+                name, breed == null ? "" : breed, String.valueOf(gender),
+                String.valueOf(weight) });
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
     @Override
-    public int update(@NonNull Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+    public int update(@NonNull final Uri uri, final ContentValues contentValues, String selection,
+                      String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+            case SHELTER_PETS:
+                break;
             case PET_ID:
+            case SHELTER_PET_ID:
                 // For the PET_ID code, extract ID from URI so we know which row to update.
-                // Selection will be "_id=?" and selectionArgs will be a String array containing
-                // actual ID.
+                // Selection will be "_id=?" and selectionArgs will be a String array
+                // containing actual ID.
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[] {
                         String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                break;
 
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
 
         }
 
+        // Deleted pets can't be changed
+        final String rowSelection = DatabaseUtils.concatenateWhere(LIVE_SELECTION, selection);
+        final String[] rowSelectionArgs = selectionArgs;
+        long shelterId = getShelterId(uri, match);
+        final PetDbHelper shard = mShards.getDbHelper(shelterId);
+        mShards.getMaintenance(shelterId).onTraffic();
+        long startNanos = System.nanoTime();
+        shard.lockShared();
+        try {
+            return runWrite(shard, new DatabaseWrite<Integer>() {
+                @Override
+                public Integer run() {
+                    return updatePet(shard, uri, contentValues, rowSelection, rowSelectionArgs);
+                }
+            });
+        } finally {
+            shard.unlockShared();
+            recordWrite(shard, startNanos);
+        }
+
     }
 
     /**
@@ -233,7 +1536,8 @@ public class PetProvider extends ContentProvider {
      * Return the number of rows that were successfully updated.
      * uri parameter used in lesson 4**
      */
-    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updatePet(PetDbHelper shard, Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
         // If the {@link PetEntry#COLUMN_PET_NAME} key is present, check that the name value
         // is not null.
         if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
@@ -261,13 +1565,20 @@ public class PetProvider extends ContentProvider {
             }
         }
 
+        // The timestamps belong to the provider
+        values = new ContentValues(values);
+        values.remove(PetEntry.COLUMN_PET_CREATED_AT);
+        values.remove(PetEntry.COLUMN_PET_UPDATED_AT);
+        values.remove(PetEntry.COLUMN_PET_FINGERPRINT);
+
         if (values.size() == 0) {
         // No need to check breed as any value is valid (including null).
         return 0;
         }
+        values.put(PetEntry.COLUMN_PET_UPDATED_AT, System.currentTimeMillis());
 
         // Otherwise, get writable database to update data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = shard.getWritableDatabase();
 
         // Perform the update on the database and get the number of rows affected
         int rowsUpdated = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
@@ -275,7 +1586,7 @@ public class PetProvider extends ContentProvider {
         // If 1 or more rows were updated, then notify all listeners that the data at the given
         // URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(shard, uri);
         }
 
         // Return the number of rows updated
@@ -287,26 +1598,66 @@ public class PetProvider extends ContentProvider {
      * Delete the data at the given selection and selection arguments.
      */
     @Override
-    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+    public int delete(@NonNull final Uri uri, final String selection,
+                      final String[] selectionArgs) {
+        long shelterId = getShelterId(uri, sUriMatcher.match(uri));
+        final PetDbHelper shard = mShards.getDbHelper(shelterId);
+        mShards.getMaintenance(shelterId).onTraffic();
+        long startNanos = System.nanoTime();
+        shard.lockShared();
+        try {
+            return runWrite(shard, new DatabaseWrite<Integer>() {
+                @Override
+                public Integer run() {
+                    return deletePets(shard, uri, selection, selectionArgs);
+                }
+            });
+        } finally {
+            shard.unlockShared();
+            recordWrite(shard, startNanos);
+        }
+    }
+
+    /**
+     * Does the actual work of {@link #delete(Uri, String, String[])} on the given shelter's
+     * database.
+     */
+    private int deletePets(PetDbHelper shard, Uri uri, String selection, String[] selectionArgs) {
         // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = shard.getWritableDatabase();
 
         // Track the number of rows that were deleted
         int rowsDeleted;
 
+        // Pets are only marked deleted, so they can be brought back for a while; PetReaper
+        // removes them, and their photos, for good later. Clearing the fingerprint keeps them out
+        // of the duplicate checks.
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(PetEntry.COLUMN_PET_DELETED_AT, System.currentTimeMillis());
+        tombstone.putNull(PetEntry.COLUMN_PET_FINGERPRINT);
+
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = database.update(PetEntry.TABLE_NAME, tombstone,
+                        DatabaseUtils.concatenateWhere(LIVE_SELECTION, selection), selectionArgs);
                 break;
             case PET_ID:
+            case SHELTER_PET_ID:
                 // Delete a single row given by the ID in the URI
-                selection = PetEntry._ID + "=?";
+                selection = PetEntry._ID + "=? AND " + LIVE_SELECTION;
                 selectionArgs = new String[] {
                         String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = database.update(PetEntry.TABLE_NAME, tombstone, selection,
+                        selectionArgs);
                 break;
+            case PET_PHOTO:
+                // Remove the photo of a single pet, keeping the pet
+                long id = Long.parseLong(uri.getPathSegments().get(1));
+                mPhotoStore.delete(id);
+                return setPhotoUpdatedAt(id, 0);
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
@@ -314,7 +1665,8 @@ public class PetProvider extends ContentProvider {
         // If 1 or more rows were deleted, then notify all listeners that the data at the given
         // URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(shard, uri);
+            mShards.getReaper(getShelterId(uri, match)).schedulePurge();
         }
 
         // Return the number of rows deleted
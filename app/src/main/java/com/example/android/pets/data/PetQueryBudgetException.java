@@ -0,0 +1,19 @@
+package com.example.android.pets.data;
+
+/**
+ * Thrown by {@link PetProvider#query} when a query runs longer than its time budget or returns
+ * more rows than its row budget (see {@link PetContract#QUERY_PARAMETER_TIMEOUT_MS} and
+ * {@link PetContract#QUERY_PARAMETER_MAX_ROWS}).
+ *
+ * It extends {@link IllegalStateException} so it survives the trip to callers in other processes,
+ * where it arrives as an IllegalStateException whose message starts with {@link #MESSAGE_PREFIX}.
+ */
+public class PetQueryBudgetException extends IllegalStateException {
+
+    /** Start of the message of every budget exception, to recognise them across processes */
+    public static final String MESSAGE_PREFIX = "Query budget exceeded: ";
+
+    public PetQueryBudgetException(String reason) {
+        super(MESSAGE_PREFIX + reason);
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Results of recent {@link PetProvider} queries, so a query repeated while the data hasn't
+ * changed, such as an activity reloading after a configuration change, is answered from memory
+ * instead of SQLite.
+ *
+ * Results are keyed by everything that makes up the query: its URI (shelter, pet, limit and
+ * other parameters), columns, selection, arguments and sort order. Each is stored with the
+ * {@link PetDbHelper#getGeneration() generation} of its shelter's database when the query
+ * started; every write bumps the generation, so a result cached before a write is never handed
+ * out after it. The rows are copied into immutable arrays, shared by every cursor handed out for
+ * them; each hit gets a new lightweight cursor of its own over those arrays, so callers can't
+ * disturb one another.
+ *
+ * The cache is bounded by an estimate of the memory its rows take, {@link #MAX_BYTES} in all,
+ * dropping the least recently used results first. Results over {@link #MAX_ENTRY_BYTES} aren't
+ * cached at all.
+ */
+final class PetQueryCache {
+
+    /** Most memory the cached results may take, by estimate */
+    static final long MAX_BYTES = 1024 * 1024;
+
+    /** Largest single result cached, so one big query can't flush everything else */
+    static final long MAX_ENTRY_BYTES = MAX_BYTES / 4;
+
+    /** Largest number of rows cached for one result; bigger results aren't even copied */
+    private static final int MAX_ENTRY_ROWS = 2000;
+
+    /** Estimated memory of an object header and reference, and of each cached row and value */
+    private static final int OBJECT_BYTES = 16;
+
+    /**
+     * One cached result: its rows, the generation they were read at, what they take, and how
+     * long the query took.
+     */
+    private static final class Entry {
+        final String[] columnNames;
+        final Object[][] rows;
+        final long generation;
+        final long bytes;
+        final long queryMicros;
+
+        Entry(String[] columnNames, Object[][] rows, long generation, long bytes,
+              long queryMicros) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.generation = generation;
+            this.bytes = bytes;
+            this.queryMicros = queryMicros;
+        }
+    }
+
+    private long mHits;
+    private long mMisses;
+    private long mBytes;
+    private long mSavedMicros;
+
+    /** Results in access order, so the least recently used one is dropped first */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Returns the key of a query: its parts, each prefixed with its length so no two different
+     * queries make the same key.
+     */
+    static String buildKey(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder();
+        appendPart(key, uri.toString());
+        appendParts(key, projection);
+        appendPart(key, selection);
+        appendParts(key, selectionArgs);
+        appendPart(key, sortOrder);
+        return key.toString();
+    }
+
+    private static void appendParts(StringBuilder key, String[] parts) {
+        if (parts == null) {
+            key.append("-;");
+            return;
+        }
+        key.append(parts.length).append('[');
+        for (String part : parts) {
+            appendPart(key, part);
+        }
+    }
+
+    private static void appendPart(StringBuilder key, String part) {
+        if (part == null) {
+            key.append("-;");
+        } else {
+            key.append(part.length()).append(':').append(part);
+        }
+    }
+
+    /**
+     * Returns a new cursor over the result cached for the key, if it was read at the given
+     * generation, or null if it has to be queried.
+     */
+    synchronized Cursor get(String key, long generation) {
+        long startNanos = System.nanoTime();
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.generation != generation) {
+            // Written since; it will never be valid again
+            mEntries.remove(key);
+            mBytes -= entry.bytes;
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        Cursor cursor = new CachedCursor(entry.columnNames, entry.rows);
+        mSavedMicros += Math.max(0, entry.queryMicros - (System.nanoTime() - startNanos) / 1000);
+        return cursor;
+    }
+
+    /**
+     * Cache the result of a query, read at the given generation, if it is small enough. The
+     * given cursor must have been filled already.
+     *
+     * @return the cursor to hand out: a cursor over the cached rows, with the given one closed,
+     * or the given cursor itself if the result wasn't cached.
+     */
+    Cursor put(String key, long generation, Cursor cursor, long queryMicros) {
+        int count = cursor.getCount();
+        if (count > MAX_ENTRY_ROWS) {
+            return cursor;
+        }
+        String[] columnNames = cursor.getColumnNames();
+        int columns = columnNames.length;
+        Object[][] rows = new Object[count][];
+        long bytes = 2L * key.length() + OBJECT_BYTES * (2 + count);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String value = cursor.getString(i);
+                        row[i] = value;
+                        bytes += 2L * value.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(i);
+                        row[i] = blob;
+                        bytes += blob.length;
+                        break;
+                    default:
+                        // null
+                        break;
+                }
+                bytes += OBJECT_BYTES;
+            }
+            rows[cursor.getPosition()] = row;
+            if (bytes > MAX_ENTRY_BYTES) {
+                // Hand out the original after all
+                cursor.moveToPosition(-1);
+                return cursor;
+            }
+        }
+        cursor.close();
+
+        Entry entry = new Entry(columnNames, rows, generation, bytes, queryMicros);
+        synchronized (this) {
+            Entry previous = mEntries.put(key, entry);
+            if (previous != null) {
+                mBytes -= previous.bytes;
+            }
+            mBytes += bytes;
+            Iterator<Entry> eldest = mEntries.values().iterator();
+            while (mBytes > MAX_BYTES && eldest.hasNext()) {
+                mBytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+        return new CachedCursor(columnNames, rows);
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns the statistics in the form {@link PetProvider#call} hands them out.
+     */
+    synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(PetContract.KEY_RESULT_CACHE_HITS, mHits);
+        bundle.putLong(PetContract.KEY_RESULT_CACHE_MISSES, mMisses);
+        long lookups = mHits + mMisses;
+        bundle.putDouble(PetContract.KEY_RESULT_CACHE_HIT_RATE,
+                lookups == 0 ? 0 : (double) mHits / lookups);
+        bundle.putInt(PetContract.KEY_RESULT_CACHE_ENTRIES, mEntries.size());
+        bundle.putLong(PetContract.KEY_RESULT_CACHE_BYTES, mBytes);
+        bundle.putLong(PetContract.KEY_RESULT_CACHE_SAVED_US, mSavedMicros);
+        return bundle;
+    }
+
+    /**
+     * A read-only cursor over cached rows. The rows are shared with every other cursor over the
+     * same result and never change; only the position belongs to the cursor. Values convert
+     * between types the way SQLite's cursors convert them.
+     */
+    private static final class CachedCursor extends AbstractCursor {
+        private final String[] mColumnNames;
+        private final Object[][] mRows;
+
+        CachedCursor(String[] columnNames, Object[][] rows) {
+            mColumnNames = columnNames;
+            mRows = rows;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumnNames.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            if (mPos < 0 || mPos >= mRows.length) {
+                throw new IllegalStateException("Cursor is not on a row");
+            }
+            return mRows[mPos][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames.clone();
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof String) {
+                return FIELD_TYPE_STRING;
+            }
+            return FIELD_TYPE_BLOB;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value instanceof byte[]) {
+                throw new IllegalStateException("Column " + column + " is a blob");
+            }
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return (long) toDouble(value, column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return toDouble(value, column);
+        }
+
+        /**
+         * Returns the value as a number: 0 for null and text that isn't a number, like SQLite.
+         */
+        private static double toDouble(Object value, int column) {
+            if (value instanceof byte[]) {
+                throw new IllegalStateException("Column " + column + " is a blob");
+            }
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return null;
+            } else if (value instanceof byte[]) {
+                // A copy, so the shared rows stay as they are
+                return ((byte[]) value).clone();
+            } else if (value instanceof String) {
+                return ((String) value).getBytes();
+            }
+            throw new IllegalStateException("Column " + column + " is not a blob");
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
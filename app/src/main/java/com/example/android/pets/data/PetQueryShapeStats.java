@@ -0,0 +1,59 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts the query shapes of {@link PetProvider}. The provider binds every value of a query,
+ * down to its limit and offset, so the SQL text of a query depends only on its shape: the URI
+ * pattern, columns, selection, sort order and which of the time range and paging parameters
+ * are set. That text is the key here.
+ *
+ * These are only statistics on how often queries repeat a recent shape. Whether SQLite reuses a
+ * compiled statement for a repeat is up to the statement cache of whichever connection runs the
+ * query, which this doesn't see. Only the most recently used {@link #MAX_SHAPES} shapes are
+ * kept.
+ */
+final class PetQueryShapeStats {
+
+    /** Maximum number of shapes kept */
+    static final int MAX_SHAPES = 64;
+
+    private long mRepeats;
+    private long mNewShapes;
+
+    /** The shapes seen, in access order so the eldest is dropped first */
+    private final Map<String, Boolean> mShapes = new LinkedHashMap<String, Boolean>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SHAPES;
+        }
+    };
+
+    /**
+     * Count a query of the given SQL, as a repeat if its shape was seen recently.
+     */
+    synchronized void record(String sql) {
+        if (mShapes.put(sql, Boolean.TRUE) != null) {
+            mRepeats++;
+        } else {
+            mNewShapes++;
+        }
+    }
+
+    /**
+     * Returns the statistics in the form {@link PetProvider#call} hands them out.
+     */
+    synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(PetContract.KEY_QUERY_SHAPE_REPEATS, mRepeats);
+        bundle.putLong(PetContract.KEY_QUERY_SHAPE_NEW, mNewShapes);
+        long queries = mRepeats + mNewShapes;
+        bundle.putDouble(PetContract.KEY_QUERY_SHAPE_REPEAT_RATE,
+                queries == 0 ? 0 : (double) mRepeats / queries);
+        return bundle;
+    }
+}
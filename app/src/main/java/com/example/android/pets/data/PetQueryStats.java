@@ -0,0 +1,105 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running statistics on {@link PetProvider} queries: how many ran, how many went over their
+ * time or row budget, and how long each query shape (URI pattern, selection and sort order)
+ * takes. Only the most recently used {@link #MAX_SHAPES} shapes are tracked.
+ */
+public final class PetQueryStats {
+
+    /** Maximum number of query shapes tracked */
+    private static final int MAX_SHAPES = 64;
+
+    /** Number of shapes reported by {@link #toBundle()} */
+    private static final int REPORTED_SHAPES = 10;
+
+    /**
+     * Timings of one query shape.
+     */
+    private static final class ShapeStats {
+        final String shape;
+        int count;
+        long totalMicros;
+        long maxMicros;
+
+        ShapeStats(String shape) {
+            this.shape = shape;
+        }
+    }
+
+    private int mQueries;
+    private int mTimeouts;
+    private int mRowBudgetHits;
+
+    /** Shape statistics in access order, so the least recently seen shape is dropped first */
+    private final Map<String, ShapeStats> mShapes =
+            new LinkedHashMap<String, ShapeStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ShapeStats> eldest) {
+                    return size() > MAX_SHAPES;
+                }
+            };
+
+    /**
+     * Record a finished (or failed) query of the given shape.
+     */
+    public synchronized void recordQuery(String shape, long micros) {
+        mQueries++;
+        ShapeStats stats = mShapes.get(shape);
+        if (stats == null) {
+            stats = new ShapeStats(shape);
+            mShapes.put(shape, stats);
+        }
+        stats.count++;
+        stats.totalMicros += micros;
+        stats.maxMicros = Math.max(stats.maxMicros, micros);
+    }
+
+    /** Record a query cancelled for running past its time budget. */
+    public synchronized void recordTimeout() {
+        mTimeouts++;
+    }
+
+    /** Record a query rejected for returning more rows than its row budget. */
+    public synchronized void recordRowBudgetHit() {
+        mRowBudgetHits++;
+    }
+
+    /**
+     * Returns the statistics in the form {@link PetProvider#call} hands them out, with the
+     * slowest shapes (by worst-case time) first.
+     */
+    public synchronized Bundle toBundle() {
+        List<ShapeStats> shapes = new ArrayList<>(mShapes.values());
+        Collections.sort(shapes, new Comparator<ShapeStats>() {
+            @Override
+            public int compare(ShapeStats a, ShapeStats b) {
+                return a.maxMicros < b.maxMicros ? 1 : (a.maxMicros == b.maxMicros ? 0 : -1);
+            }
+        });
+
+        int reported = Math.min(REPORTED_SHAPES, shapes.size());
+        String[] slowShapes = new String[reported];
+        for (int i = 0; i < reported; i++) {
+            ShapeStats stats = shapes.get(i);
+            slowShapes[i] = stats.shape + ": " + stats.count + " queries, avg "
+                    + stats.totalMicros / stats.count + " us, max " + stats.maxMicros + " us";
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(PetContract.KEY_QUERY_COUNT, mQueries);
+        bundle.putInt(PetContract.KEY_QUERY_TIMEOUTS, mTimeouts);
+        bundle.putInt(PetContract.KEY_QUERY_ROW_BUDGET_HITS, mRowBudgetHits);
+        bundle.putStringArray(PetContract.KEY_QUERY_SLOW_SHAPES, slowShapes);
+        return bundle;
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes deleted pets for good once their undo window is over, along with their photos.
+ * Deleting a pet through the provider only marks it deleted; the reaper later removes the
+ * expired pets {@link #BATCH_ROWS} at a time, each batch in one transaction.
+ *
+ * Marking a pet deleted is still a commit of its own, just as removing it was, so deleting pets
+ * one call at a time costs as many commits as before, plus one purge commit per batch.
+ * Deleting many pets in one commit takes a single call, with a selection or
+ * {@link PetContract#METHOD_BATCH_DELETE}.
+ *
+ * The provider {@link #schedulePurge() schedules a purge} in its own process after every
+ * delete, for when the undo window is over. The reaper is also a maintenance task, which
+ * catches up on pets whose purge didn't run because the process was gone.
+ *
+ * Also keeps the undo window, which the provider's undo checks against.
+ */
+final class PetReaper implements PetMaintenance.Task {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetReaper.class.getSimpleName();
+
+    /** Name of the shared preferences holding the undo window */
+    private static final String PREFERENCES_NAME = "pet_reaper";
+
+    private static final String PREFERENCE_UNDO_WINDOW_MS = "undo_window_ms";
+
+    /** Number of pets removed in one transaction */
+    private static final int BATCH_ROWS = 1000;
+
+    /**
+     * How long after the undo window a purge runs, so one purge covers the pets deleted just
+     * after the one it was scheduled for
+     */
+    private static final long PURGE_DELAY_MS = 5000;
+
+    /** Runs the purges of every shelter, one at a time */
+    private static final ScheduledExecutorService sPurgeExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final PetDbHelper mDbHelper;
+    private final SharedPreferences mPreferences;
+    private final PetPhotoStore mPhotoStore;
+
+    /** Whether a purge is scheduled; deletes meanwhile leave their pets to it */
+    private boolean mPurgeScheduled;
+
+    /** The scheduled purge, if any */
+    private ScheduledFuture<?> mPurge;
+
+    /** Set once the database is closed, after which nothing is purged anymore */
+    private boolean mStopped;
+
+    /**
+     * Constructs the reaper of a database. Only the default shelter has photos; the reapers of
+     * the other shelters get no photo store.
+     */
+    PetReaper(Context context, PetDbHelper dbHelper, PetPhotoStore photoStore) {
+        mDbHelper = dbHelper;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mPhotoStore = photoStore;
+    }
+
+    /**
+     * Returns how long a deleted pet can be brought back, in milliseconds.
+     */
+    long getUndoWindowMillis() {
+        return mPreferences.getLong(PREFERENCE_UNDO_WINDOW_MS,
+                PetContract.DEFAULT_UNDO_WINDOW_MS);
+    }
+
+    /**
+     * Set how long a deleted pet can be brought back, capped at
+     * {@link PetContract#MAX_UNDO_WINDOW_MS}.
+     */
+    void setUndoWindowMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid undo window " + millis);
+        }
+        mPreferences.edit().putLong(PREFERENCE_UNDO_WINDOW_MS,
+                Math.min(millis, PetContract.MAX_UNDO_WINDOW_MS)).apply();
+    }
+
+    /**
+     * Schedule a purge of the pets deleted so far for when their undo window is over, unless one
+     * is scheduled already. Runs in this process, so it works on every API level and doesn't
+     * wait for the maintenance job. A purge schedules the next one itself if pets are left
+     * whose window isn't over yet.
+     */
+    void schedulePurge() {
+        schedulePurge(getUndoWindowMillis() + PURGE_DELAY_MS);
+    }
+
+    private synchronized void schedulePurge(long delayMillis) {
+        if (mPurgeScheduled || mStopped) {
+            return;
+        }
+        mPurgeScheduled = true;
+        mPurge = sPurgeExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                purge();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the scheduled purge and schedule no more, as the database is being closed. A purge
+     * already running still runs to its end.
+     */
+    synchronized void stopPurging() {
+        mStopped = true;
+        if (mPurge != null) {
+            mPurge.cancel(false);
+        }
+    }
+
+    /**
+     * Remove every pet whose undo window is over, then schedule the next purge for the oldest
+     * pet left, if any. The removed pets were never visible to queries, so cached query results
+     * stay valid and nobody is notified.
+     */
+    private void purge() {
+        synchronized (this) {
+            // Deletes from now on may not be covered by this purge
+            mPurgeScheduled = false;
+        }
+        long window = getUndoWindowMillis();
+        long oldestDeletedAt;
+        mDbHelper.lockShared();
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            long cutoff = System.currentTimeMillis() - window;
+            int removed = 0;
+            int rows;
+            do {
+                rows = removeBatch(database, cutoff);
+                removed += rows;
+            } while (rows == BATCH_ROWS);
+            if (removed != 0) {
+                Log.i(LOG_TAG, "Purged " + removed + " deleted pets");
+            }
+            // The lower end of the index on the deletion time; 0 if no pet is left
+            oldestDeletedAt = DatabaseUtils.longForQuery(database, "SELECT MIN("
+                    + PetEntry.COLUMN_PET_DELETED_AT + ") FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry.COLUMN_PET_DELETED_AT + ">0", null);
+        } catch (RuntimeException e) {
+            // The maintenance task will catch up
+            Log.e(LOG_TAG, "Purge failed", e);
+            return;
+        } finally {
+            mDbHelper.unlockShared();
+        }
+        if (oldestDeletedAt != 0) {
+            long expiresIn = oldestDeletedAt + window - System.currentTimeMillis();
+            schedulePurge(Math.max(0, expiresIn) + PURGE_DELAY_MS);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "reaper";
+    }
+
+    @Override
+    public long getBudgetMillis() {
+        return 30000;
+    }
+
+    @Override
+    public boolean run(SQLiteDatabase database, PetMaintenance.Budget budget) {
+        long cutoff = System.currentTimeMillis() - getUndoWindowMillis();
+        int removed = 0;
+        try {
+            while (!budget.shouldStop()) {
+                int rows = removeBatch(database, cutoff);
+                removed += rows;
+                if (rows < BATCH_ROWS) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (removed != 0) {
+                Log.i(LOG_TAG, "Removed " + removed + " deleted pets");
+            }
+        }
+    }
+
+    /**
+     * Remove the next batch of pets deleted before the cutoff in one transaction, then their
+     * photos. The expired pets are found inside the transaction, which keeps every other writer
+     * out, and each delete checks the deletion time again anyway, so a pet brought back in the
+     * meantime is never removed.
+     *
+     * @return the number of pets removed.
+     */
+    private int removeBatch(SQLiteDatabase database, long cutoff) {
+        long[] ids = new long[BATCH_ROWS];
+        boolean[] hasPhoto = new boolean[BATCH_ROWS];
+        int rows = 0;
+        int removed = 0;
+        SQLiteStatement delete = database.compileStatement("DELETE FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry._ID + "=? AND " + PetEntry.COLUMN_PET_DELETED_AT
+                + " BETWEEN 1 AND ?");
+        database.beginTransaction();
+        try {
+            // A range on the index, so only the expired pets are read
+            Cursor cursor = database.rawQuery("SELECT " + PetEntry._ID + ", "
+                    + PetEntry.COLUMN_PET_PHOTO_UPDATED_AT + " FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry.COLUMN_PET_DELETED_AT + " BETWEEN 1 AND ? LIMIT "
+                    + BATCH_ROWS, new String[] { String.valueOf(cutoff) });
+            try {
+                while (cursor.moveToNext()) {
+                    ids[rows] = cursor.getLong(0);
+                    hasPhoto[rows] = cursor.getLong(1) != 0;
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (int i = 0; i < rows; i++) {
+                delete.bindLong(1, ids[i]);
+                delete.bindLong(2, cutoff);
+                if (delete.executeUpdateDelete() == 0) {
+                    // Its photo stays with it
+                    hasPhoto[i] = false;
+                } else {
+                    removed++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            delete.close();
+        }
+
+        for (int i = 0; i < rows && mPhotoStore != null; i++) {
+            if (hasPhoto[i]) {
+                mPhotoStore.delete(ids[i]);
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The databases of the shelters, one file per shelter. The default shelter keeps the original
+ * database; every other shelter has a "shelter_<id>.db" of its own, created by
+ * {@link #createShelter} and found again by its name on the next launch. Shelters that haven't
+ * been created are rejected, so a mistyped ID can't leave a new database file behind.
+ *
+ * As each shelter has its own file, its own {@link PetDbHelper} and so its own swap lock and
+ * SQLite locks, writing to one shelter never waits for another, and a scan only ever reads the
+ * pets of its shelter. Each shelter also has its own {@link PetMaintenance}, with its own task
+ * history, which traffic on other shelters doesn't preempt.
+ */
+final class PetShardManager {
+
+    // Tag for the log messages
+    private static final String LOG_TAG = PetShardManager.class.getSimpleName();
+
+    /** Names of the database files of the shelters other than the default */
+    private static final Pattern SHARD_NAME = Pattern.compile("shelter_(\\d+)\\.db");
+
+    /**
+     * The database of a shelter, its maintenance and its reaper.
+     */
+    private static final class Shard {
+        final PetDbHelper dbHelper;
+        final PetMaintenance maintenance;
+        final PetReaper reaper;
+
+        Shard(PetDbHelper dbHelper, PetMaintenance maintenance, PetReaper reaper) {
+            this.dbHelper = dbHelper;
+            this.maintenance = maintenance;
+            this.reaper = reaper;
+            maintenance.register(reaper);
+            // Pets deleted before the last launch may still be waiting for their purge
+            reaper.schedulePurge();
+        }
+    }
+
+    private final Context mContext;
+
+    /** The shelters used so far, by ID */
+    private final Map<Long, Shard> mShards = new HashMap<>();
+
+    /** IDs of the shelters with a database file, the default one first */
+    private long[] mShelterIds;
+
+    /** Set to stop a maintenance run before it moves on to the next shelter */
+    private volatile boolean mCancelled;
+
+    /**
+     * Constructs the shard manager. Only the default shelter has photos, kept in the given
+     * store.
+     */
+    PetShardManager(Context context, PetDbHelper defaultDbHelper, PetPhotoStore photoStore) {
+        mContext = context;
+        mShards.put(PetContract.DEFAULT_SHELTER_ID, new Shard(defaultDbHelper,
+                new PetMaintenance(context, defaultDbHelper, PetMaintenance.PREFERENCES_NAME),
+                new PetReaper(context, defaultDbHelper, photoStore)));
+        mShelterIds = findShelterIds(context);
+    }
+
+    /**
+     * Returns the IDs of the shelters that have a database file, from the file names.
+     */
+    private static long[] findShelterIds(Context context) {
+        File directory = context.getDatabasePath(getShardName(0)).getParentFile();
+        String[] names = directory == null ? null : directory.list();
+        long[] ids = new long[names == null ? 1 : names.length + 1];
+        int count = 1;
+        ids[0] = PetContract.DEFAULT_SHELTER_ID;
+        if (names != null) {
+            for (String name : names) {
+                Matcher matcher = SHARD_NAME.matcher(name);
+                if (matcher.matches()) {
+                    try {
+                        ids[count++] = Long.parseLong(matcher.group(1));
+                    } catch (NumberFormatException e) {
+                        Log.w(LOG_TAG, "Ignoring shelter database " + name);
+                    }
+                }
+            }
+        }
+        Arrays.sort(ids, 1, count);
+        return Arrays.copyOf(ids, count);
+    }
+
+    private static String getShardName(long shelterId) {
+        return "shelter_" + shelterId + ".db";
+    }
+
+    /**
+     * Returns the database of the given shelter.
+     *
+     * @throws IllegalArgumentException if there is no such shelter.
+     */
+    PetDbHelper getDbHelper(long shelterId) {
+        return getShard(shelterId).dbHelper;
+    }
+
+    /**
+     * Returns the maintenance of the given shelter's database.
+     */
+    PetMaintenance getMaintenance(long shelterId) {
+        return getShard(shelterId).maintenance;
+    }
+
+    /**
+     * Returns the reaper of the given shelter's deleted pets.
+     */
+    PetReaper getReaper(long shelterId) {
+        return getShard(shelterId).reaper;
+    }
+
+    private synchronized Shard getShard(long shelterId) {
+        Shard shard = mShards.get(shelterId);
+        if (shard != null) {
+            return shard;
+        }
+        // The default shelter is always in the map, so only the others are searched
+        if (Arrays.binarySearch(mShelterIds, 1, mShelterIds.length, shelterId) < 0) {
+            throw new IllegalArgumentException("Unknown shelter " + shelterId);
+        }
+        shard = openShard(shelterId);
+        mShards.put(shelterId, shard);
+        return shard;
+    }
+
+    /**
+     * Opens the database of a shelter other than the default one. Opening the helper doesn't
+     * create the file yet, but the first use will.
+     */
+    private Shard openShard(long shelterId) {
+        PetDbHelper dbHelper = new PetDbHelper(mContext, getShardName(shelterId));
+        PetMaintenance maintenance = new PetMaintenance(mContext, dbHelper,
+                PetMaintenance.PREFERENCES_NAME + "_" + shelterId);
+        // The other shelters have no photos
+        return new Shard(dbHelper, maintenance, new PetReaper(mContext, dbHelper, null));
+    }
+
+    /**
+     * Create the given shelter with an empty database file, unless it exists already.
+     */
+    synchronized void createShelter(long shelterId) {
+        if (shelterId < 0) {
+            throw new IllegalArgumentException("Invalid shelter " + shelterId);
+        }
+        if (mShards.containsKey(shelterId)
+                || Arrays.binarySearch(mShelterIds, 1, mShelterIds.length, shelterId) >= 0) {
+            return;
+        }
+        Shard shard = openShard(shelterId);
+        // Creates the file, so the shelter is found again on the next launch
+        shard.dbHelper.getWritableDatabase();
+        mShards.put(shelterId, shard);
+
+        long[] ids = Arrays.copyOf(mShelterIds, mShelterIds.length + 1);
+        ids[ids.length - 1] = shelterId;
+        Arrays.sort(ids, 1, ids.length);
+        mShelterIds = ids;
+    }
+
+    /**
+     * Returns the IDs of every shelter, the default one first.
+     */
+    synchronized long[] getShelterIds() {
+        return mShelterIds.clone();
+    }
+
+    /**
+     * Run the maintenance of every shelter in turn. Each one is preempted only by traffic on its
+     * own shelter, so a busy shelter doesn't keep the others from being maintained.
+     *
+     * @return whether every shelter's maintenance finished, in
+     * {@link PetContract#KEY_MAINTENANCE_COMPLETE}.
+     */
+    Bundle runMaintenance() {
+        mCancelled = false;
+        boolean complete = true;
+        for (long shelterId : getShelterIds()) {
+            if (mCancelled) {
+                complete = false;
+                break;
+            }
+            Bundle result = getMaintenance(shelterId).run();
+            complete &= result.getBoolean(PetContract.KEY_MAINTENANCE_COMPLETE);
+        }
+        Bundle result = new Bundle();
+        result.putBoolean(PetContract.KEY_MAINTENANCE_COMPLETE, complete);
+        return result;
+    }
+
+    /**
+     * Stop the current maintenance run, if any, at the next step of its current task.
+     */
+    void cancelMaintenance() {
+        mCancelled = true;
+        synchronized (this) {
+            for (Shard shard : mShards.values()) {
+                shard.maintenance.cancel();
+            }
+        }
+    }
+
+    /**
+     * Delete the given shelter, other than the default one, with its database file and every
+     * pet in it, unless it doesn't exist.
+     */
+    synchronized void deleteShelter(long shelterId) {
+        if (shelterId == PetContract.DEFAULT_SHELTER_ID) {
+            throw new IllegalArgumentException("Cannot delete the default shelter");
+        }
+        int index = Arrays.binarySearch(mShelterIds, 1, mShelterIds.length, shelterId);
+        if (index < 0) {
+            return;
+        }
+        Shard shard = mShards.remove(shelterId);
+        if (shard == null) {
+            shard = openShard(shelterId);
+        }
+        shard.reaper.stopPurging();
+        shard.maintenance.cancel();
+        shard.dbHelper.delete();
+
+        long[] ids = new long[mShelterIds.length - 1];
+        System.arraycopy(mShelterIds, 0, ids, 0, index);
+        System.arraycopy(mShelterIds, index + 1, ids, index, ids.length - index);
+        mShelterIds = ids;
+    }
+
+    /**
+     * Stop the purges and maintenance of every shelter and close their databases.
+     */
+    synchronized void close() {
+        for (Shard shard : mShards.values()) {
+            shard.reaper.stopPurging();
+            shard.maintenance.cancel();
+            shard.dbHelper.close();
+        }
+    }
+
+    /**
+     * Returns the maintenance history of the default shelter, with that of the other shelters
+     * under their IDs, as described at {@link PetContract#KEY_MAINTENANCE_SHELTERS}.
+     */
+    Bundle getMaintenanceStats() {
+        long[] shelterIds = getShelterIds();
+        Bundle bundle = getMaintenance(PetContract.DEFAULT_SHELTER_ID).toBundle();
+        long[] others = Arrays.copyOfRange(shelterIds, 1, shelterIds.length);
+        for (long shelterId : others) {
+            bundle.putBundle(String.valueOf(shelterId), getMaintenance(shelterId).toBundle());
+        }
+        bundle.putLongArray(PetContract.KEY_MAINTENANCE_SHELTERS, others);
+        return bundle;
+    }
+}
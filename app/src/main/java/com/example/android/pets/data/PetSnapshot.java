@@ -0,0 +1,427 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the pets table, for moving pets between devices or loading test
+ * fixtures without replaying inserts one by one.
+ *
+ * A snapshot is a header followed by blocks of up to {@link #BLOCK_ROWS} pets in _id order:
+ * <pre>
+ *   header: magic "PETS" (4 bytes), format version (4 bytes)
+ *   block:  row count (4 bytes), payload length (4 bytes), CRC32 of the payload (4 bytes), payload
+ * </pre>
+ * The payload is columnar: the IDs as varint deltas from the previous ID, then the genders and
+ * weights as varints, then the breeds as a dictionary of the distinct breeds in the block
+ * followed by one varint code per pet (0 for no breed), and finally the names as a varint byte
+ * length and UTF-8 bytes each. A block with a row count of 0 ends the snapshot, so a truncated
+ * file is detected.
+ *
+ * The same format is what {@link PetEntry#STREAM_URI} streams to other processes, see
+ * {@link #stream(ContentResolver, long, String, String[], RowHandler)}.
+ */
+public final class PetSnapshot {
+
+    /** Maximum number of pets in a block */
+    public static final int BLOCK_ROWS = 1024;
+
+    /** "PETS" in ASCII */
+    private static final int MAGIC = 0x50455453;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** Size of the header in front of every block's payload */
+    private static final int BLOCK_HEADER_SIZE = 12;
+
+    /** Largest payload a reader accepts, well above what {@link #BLOCK_ROWS} pets can need */
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Size of the buffer a stream is read through, so a whole block usually arrives at once */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** Columns a snapshot holds */
+    static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /**
+     * Receives the pets read from a snapshot, in _id order.
+     */
+    public interface RowHandler {
+        void onRow(long id, String name, String breed, int gender, int weight);
+    }
+
+    // Prevent someone from accidentally instantiating the class
+    private PetSnapshot() {}
+
+    /**
+     * Write every pet in the provider to the given stream, reading them a block at a time.
+     * The stream is not closed.
+     *
+     * @return the number of pets written.
+     */
+    public static int write(ContentResolver resolver, OutputStream out) throws IOException {
+        Writer writer = new Writer(out);
+        long lastId = -1;
+        int count = 0;
+        while (true) {
+            // Page through the pets by key, one block per query, so the provider's row budget
+            // is never hit and no query has to skip over the rows already written
+            Uri uri = PetEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(BLOCK_ROWS))
+                    .build();
+            Cursor cursor = resolver.query(uri, PROJECTION, PetEntry._ID + ">?",
+                    new String[] { String.valueOf(lastId) }, PetEntry._ID + " ASC");
+            if (cursor == null) {
+                break;
+            }
+            int rows;
+            try {
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    writer.add(lastId, cursor.getString(1), cursor.getString(2),
+                            cursor.getInt(3), cursor.getInt(4));
+                }
+            } finally {
+                cursor.close();
+            }
+            count += rows;
+            if (rows < BLOCK_ROWS) {
+                break;
+            }
+        }
+        writer.finish();
+        return count;
+    }
+
+    /**
+     * Encodes pets into a snapshot, a block at a time. Pets must be added in _id order.
+     */
+    public static final class Writer {
+        private final DataOutputStream mOut;
+        private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream();
+        private final CRC32 mCrc = new CRC32();
+
+        // Columns of the block being filled
+        private final long[] mIds = new long[BLOCK_ROWS];
+        private final String[] mNames = new String[BLOCK_ROWS];
+        private final String[] mBreeds = new String[BLOCK_ROWS];
+        private final int[] mGenders = new int[BLOCK_ROWS];
+        private final int[] mWeights = new int[BLOCK_ROWS];
+        private int mRows;
+
+        /**
+         * Start a snapshot on the given stream by writing its header.
+         */
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(FORMAT_VERSION);
+        }
+
+        public void add(long id, String name, String breed, int gender, int weight)
+                throws IOException {
+            mIds[mRows] = id;
+            mNames[mRows] = name;
+            mBreeds[mRows] = breed;
+            mGenders[mRows] = gender;
+            mWeights[mRows] = weight;
+            if (++mRows == BLOCK_ROWS) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * Write the last block and the end marker. The stream is flushed but not closed.
+         */
+        public void finish() throws IOException {
+            flushBlock();
+            mOut.writeInt(0);
+            mOut.writeInt(0);
+            mOut.writeInt(0);
+            mOut.flush();
+        }
+
+        private void flushBlock() throws IOException {
+            if (mRows == 0) {
+                return;
+            }
+            mPayload.reset();
+            long previousId = 0;
+            for (int i = 0; i < mRows; i++) {
+                writeVarint(mPayload, mIds[i] - previousId);
+                previousId = mIds[i];
+            }
+            for (int i = 0; i < mRows; i++) {
+                writeVarint(mPayload, mGenders[i]);
+            }
+            for (int i = 0; i < mRows; i++) {
+                writeVarint(mPayload, mWeights[i]);
+            }
+
+            // Breeds repeat a lot, so each block stores every distinct breed once
+            Map<String, Integer> codes = new HashMap<>();
+            int[] breedCodes = new int[mRows];
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            for (int i = 0; i < mRows; i++) {
+                if (mBreeds[i] == null) {
+                    continue;
+                }
+                Integer code = codes.get(mBreeds[i]);
+                if (code == null) {
+                    code = codes.size() + 1;
+                    codes.put(mBreeds[i], code);
+                    writeString(dictionary, mBreeds[i]);
+                }
+                breedCodes[i] = code;
+            }
+            writeVarint(mPayload, codes.size());
+            dictionary.writeTo(mPayload);
+            for (int i = 0; i < mRows; i++) {
+                writeVarint(mPayload, breedCodes[i]);
+            }
+
+            for (int i = 0; i < mRows; i++) {
+                writeString(mPayload, mNames[i]);
+            }
+
+            byte[] payload = mPayload.toByteArray();
+            mCrc.reset();
+            mCrc.update(payload, 0, payload.length);
+            mOut.writeInt(mRows);
+            mOut.writeInt(payload.length);
+            mOut.writeInt((int) mCrc.getValue());
+            mOut.write(payload);
+            mRows = 0;
+        }
+    }
+
+    /**
+     * Read the pets of the given shelter matching the selection from the provider, in _id
+     * order, through a single stream of snapshot blocks instead of cursor windows. Meant for
+     * other processes reading many pets: each block crosses over in one piece, and the provider
+     * only ever runs a block ahead of the reader. Pets written while the stream runs may or may not be included, but
+     * no pet is included twice.
+     *
+     * @return the number of pets read.
+     * @throws IllegalArgumentException if the stream ends early, e.g. because the selection was
+     * invalid or the provider failed.
+     */
+    public static int stream(ContentResolver resolver, long shelterId, String selection,
+                             String[] selectionArgs, RowHandler handler) throws IOException {
+        Bundle opts = new Bundle();
+        opts.putLong(PetContract.KEY_SHELTER_ID, shelterId);
+        opts.putString(PetContract.KEY_SELECTION, selection);
+        opts.putStringArray(PetContract.KEY_SELECTION_ARGS, selectionArgs);
+        AssetFileDescriptor descriptor = resolver.openTypedAssetFileDescriptor(
+                PetEntry.STREAM_URI, PetContract.SNAPSHOT_MIME_TYPE, opts);
+        if (descriptor == null) {
+            throw new FileNotFoundException("No pet stream");
+        }
+        InputStream in = descriptor.createInputStream();
+        try {
+            return read(new BufferedInputStream(in, STREAM_BUFFER_SIZE), handler);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decode the snapshot in the given buffer, from its current position, handing each pet to
+     * the handler. Blocks are checked before any of their pets are handed over.
+     *
+     * @return the number of pets read.
+     * @throws IllegalArgumentException if the snapshot is malformed, truncated or corrupt.
+     */
+    public static int read(ByteBuffer buffer, RowHandler handler) {
+        try {
+            checkHeader(buffer.getInt(), buffer.getInt());
+
+            int count = 0;
+            byte[] payload = new byte[0];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int rows = buffer.getInt();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (rows == 0) {
+                    return count;
+                }
+                checkBlock(rows, length, count);
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                buffer.get(payload, 0, length);
+                checkPayload(crc, payload, length, checksum, count);
+                readBlock(ByteBuffer.wrap(payload, 0, length), rows, handler);
+                count += rows;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated snapshot", e);
+        }
+    }
+
+    /**
+     * Decode the snapshot read from the given stream, like {@link #read(ByteBuffer, RowHandler)},
+     * holding only one block in memory at a time. The stream is not closed.
+     */
+    public static int read(InputStream in, RowHandler handler) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            checkHeader(data.readInt(), data.readInt());
+
+            int count = 0;
+            byte[] payload = new byte[0];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int rows = data.readInt();
+                int length = data.readInt();
+                int checksum = data.readInt();
+                if (rows == 0) {
+                    return count;
+                }
+                checkBlock(rows, length, count);
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                data.readFully(payload, 0, length);
+                checkPayload(crc, payload, length, checksum, count);
+                readBlock(ByteBuffer.wrap(payload, 0, length), rows, handler);
+                count += rows;
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Truncated snapshot", e);
+        }
+    }
+
+    private static void checkHeader(int magic, int version) {
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException("Not a pets snapshot");
+        }
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + version);
+        }
+    }
+
+    private static void checkBlock(int rows, int length, int count) {
+        if (rows < 0 || rows > BLOCK_ROWS || length < 0 || length > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Malformed snapshot block " + count);
+        }
+    }
+
+    private static void checkPayload(CRC32 crc, byte[] payload, int length, int checksum,
+                                     int count) {
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IllegalArgumentException("Corrupt snapshot block at pet " + count);
+        }
+    }
+
+    /**
+     * Decode one checked block payload and hand its pets over.
+     */
+    private static void readBlock(ByteBuffer payload, int rows, RowHandler handler) {
+        long[] ids = new long[rows];
+        long previousId = 0;
+        for (int i = 0; i < rows; i++) {
+            previousId += readVarint(payload);
+            ids[i] = previousId;
+        }
+        int[] genders = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            genders[i] = (int) readVarint(payload);
+        }
+        int[] weights = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            weights[i] = (int) readVarint(payload);
+        }
+
+        int dictionarySize = (int) readVarint(payload);
+        if (dictionarySize < 0 || dictionarySize > rows) {
+            throw new IllegalArgumentException("Malformed breed dictionary");
+        }
+        String[] dictionary = new String[dictionarySize + 1];
+        for (int i = 1; i <= dictionarySize; i++) {
+            dictionary[i] = readString(payload);
+        }
+        int[] breedCodes = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            breedCodes[i] = (int) readVarint(payload);
+            if (breedCodes[i] < 0 || breedCodes[i] > dictionarySize) {
+                throw new IllegalArgumentException("Malformed breed code");
+            }
+        }
+
+        for (int i = 0; i < rows; i++) {
+            handler.onRow(ids[i], readString(payload), dictionary[breedCodes[i]], genders[i],
+                    weights[i]);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        long length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Malformed string");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), (int) length,
+                UTF_8);
+        in.position(in.position() + (int) length);
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.pets.data;
+
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+/**
+ * Thin wrapper around {@link TraceCompat} for the hot paths of the Pets app (provider queries,
+ * cursor window fills, list item inflation/binding and the editor's load and save).
+ *
+ * Tracing is off by default. Turn it on with {@code adb shell setprop log.tag.PetTrace DEBUG}
+ * before the process starts, or call {@link #setEnabled(boolean)}. While it is off every method
+ * returns after a single boolean check, so the call sites cost nothing measurable.
+ */
+public final class PetTrace {
+
+    // Tag for the log messages (and the system property used to switch tracing on)
+    public static final String LOG_TAG = "PetTrace";
+
+    /** Whether sections are emitted. Read on every call, so keep it a plain volatile flag. */
+    private static volatile boolean sEnabled = Log.isLoggable(LOG_TAG, Log.DEBUG);
+
+    // Prevent someone from accidentally instantiating the class
+    private PetTrace() {}
+
+    /** Returns true if trace sections are currently being emitted. */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /** Switch tracing on or off at runtime. */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Open a trace section on the current thread.
+     *
+     * @return the start time in nanoseconds to pass back to {@link #end(String, long, int)},
+     *         or 0 if tracing is off.
+     */
+    public static long begin(String section) {
+        if (!sEnabled) {
+            return 0;
+        }
+        TraceCompat.beginSection(section);
+        return System.nanoTime();
+    }
+
+    /**
+     * Close the section opened by {@link #begin(String)} on the same thread. The row count and
+     * duration are attached as a zero-length marker section right after it, so they can be read
+     * straight off a systrace/Perfetto timeline, and are also written to logcat.
+     *
+     * @param section   name given to {@link #begin(String)}
+     * @param startNanos value returned by {@link #begin(String)}
+     * @param rows      number of rows the section touched, or -1 if not applicable
+     */
+    public static void end(String section, long startNanos, int rows) {
+        if (!sEnabled || startNanos == 0) {
+            return;
+        }
+        TraceCompat.endSection();
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        String marker = section + " rows=" + rows + " us=" + micros;
+        TraceCompat.beginSection(marker);
+        TraceCompat.endSection();
+        Log.d(LOG_TAG, marker);
+    }
+}